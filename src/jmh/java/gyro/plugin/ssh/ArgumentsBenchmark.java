@@ -0,0 +1,107 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import gyro.core.GyroInstance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ArgumentsBenchmark {
+
+    // proxy-command: a single jump host reached with ProxyCommand.
+    // proxy-jump: a jump host chain reached with ssh -J.
+    @Param({ "proxy-command", "proxy-jump" })
+    public String route;
+
+    private SshOptions options;
+    private List<GyroInstance> instances;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        List<GyroInstance> jumpHosts = SyntheticInstances.generate(4, 1L);
+
+        // Jump hosts on the loopback address so the one-time health probe
+        // fails fast instead of waiting on a real network.
+        for (int i = 0; i < jumpHosts.size(); ++ i) {
+            GyroInstance jumpHost = jumpHosts.get(i);
+
+            jumpHosts.set(i, new SimpleInstance(
+                jumpHost.getGyroInstanceId(),
+                jumpHost.getGyroInstanceName(),
+                jumpHost.getGyroInstanceLocation(),
+                jumpHost.getGyroInstanceState(),
+                jumpHost.getGyroInstanceLaunchDate(),
+                "127.0.0.1",
+                "127.0.0.1",
+                null));
+        }
+
+        instances = SyntheticInstances.generate(1000);
+        options = new SshOptions();
+        options.useJumpHost = true;
+        options.noCache = true;
+        options.user = "ec2-user";
+        options.keyfile = "/home/ec2-user/.ssh/id_ed25519";
+        options.setInstances(instances);
+        options.setJumpHosts(jumpHosts);
+        options.setJumpHostChain("proxy-jump".equals(route) ? jumpHosts.subList(0, 2) : Collections.emptyList());
+
+        for (GyroInstance instance : instances) {
+            options.createArgumentsList(instance);
+            options.releaseJumpHost(instance);
+        }
+    }
+
+    // Released right away, like a session that ended, so the jump host
+    // selector's bookkeeping stays the same size across iterations.
+    @Benchmark
+    public List<String> createArgumentsList() throws Exception {
+        GyroInstance instance = instances.get(next);
+
+        next = (next + 1) % instances.size();
+
+        try {
+            return options.createArgumentsList(instance, "uptime");
+
+        } finally {
+            options.releaseJumpHost(instance);
+        }
+    }
+
+    @Benchmark
+    public String reduceString() {
+        GyroInstance instance = instances.get(next);
+
+        next = (next + 1) % instances.size();
+        return SshOptions.reduceString(instance.getGyroInstanceName(), 20);
+    }
+
+}
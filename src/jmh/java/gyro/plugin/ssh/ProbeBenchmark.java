@@ -0,0 +1,157 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Probes a local stand-in for sshd. "banner" answers like sshd, "silent"
+// accepts and never answers (read timeout), "refused" has nothing listening
+// and "black-hole" targets a TEST-NET address that never answers (connect
+// timeout). probe() uses short timeouts so the failure cases stay bounded.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProbeBenchmark {
+
+    private static final int CONNECT_TIMEOUT = 100;
+    private static final int READ_TIMEOUT = 200;
+
+    @Param({ "banner", "silent", "refused", "black-hole" })
+    public String server;
+
+    private BannerServer bannerServer;
+    private InetAddress host;
+    private int port;
+
+    @Setup
+    public void setup() throws IOException {
+        switch (server) {
+            case "banner":
+            case "silent":
+                bannerServer = new BannerServer("banner".equals(server));
+                host = InetAddress.getLoopbackAddress();
+                port = bannerServer.getPort();
+                break;
+
+            case "refused":
+                try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                    port = socket.getLocalPort();
+                }
+
+                host = InetAddress.getLoopbackAddress();
+                break;
+
+            default:
+                host = InetAddress.getByName("192.0.2.1");
+                port = 22;
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (bannerServer != null) {
+            bannerServer.close();
+        }
+    }
+
+    // Uses the production timeouts, so the silent and black-hole cases show
+    // what an unreachable host costs a real run.
+    @Benchmark
+    public boolean hasService() {
+        return SshOptions.hasService(host, port);
+    }
+
+    @Benchmark
+    public Set<InetAddress> probe() {
+        return new SshProbe(port, CONNECT_TIMEOUT, READ_TIMEOUT).probe(Collections.singleton(host));
+    }
+
+    private static class BannerServer implements AutoCloseable {
+
+        private static final byte[] BANNER = "SSH-2.0-OpenSSH_8.9 gyro-benchmark\r\n".getBytes(StandardCharsets.US_ASCII);
+
+        private final ServerSocket socket;
+        private final boolean banner;
+        private final List<Socket> silent = Collections.synchronizedList(new ArrayList<>());
+        private final Thread thread;
+
+        public BannerServer(boolean banner) throws IOException {
+            this.socket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+            this.banner = banner;
+            this.thread = new Thread(this::serve, "gyro-ssh-banner-server");
+
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public int getPort() {
+            return socket.getLocalPort();
+        }
+
+        private void serve() {
+            while (!socket.isClosed()) {
+                try {
+                    Socket client = socket.accept();
+
+                    if (banner) {
+                        try (Socket s = client; OutputStream out = s.getOutputStream()) {
+                            out.write(BANNER);
+                        }
+
+                    } else {
+                        silent.add(client);
+                    }
+
+                } catch (IOException ex) {
+                    // Closed.
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+
+            synchronized (silent) {
+                for (Socket client : silent) {
+                    client.close();
+                }
+            }
+        }
+    }
+
+}
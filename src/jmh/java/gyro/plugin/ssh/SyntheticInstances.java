@@ -0,0 +1,62 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import gyro.core.GyroInstance;
+
+// Deterministic fake inventories for the benchmarks.
+public class SyntheticInstances {
+
+    private static final String[] LOCATIONS = { "us-east-1a", "us-east-1b", "us-east-1c", "us-west-2a", "eu-west-1a" };
+    private static final String[] STATES = { "running", "running", "running", "stopped", "pending" };
+    private static final String[] LAYERS = { "web", "app", "worker", "cache", "search", "db" };
+
+    public static List<GyroInstance> generate(int count) {
+        return generate(count, 0L);
+    }
+
+    public static List<GyroInstance> generate(int count, long seed) {
+        Random random = new Random(seed);
+        List<GyroInstance> instances = new ArrayList<>(count);
+
+        for (int i = 0; i < count; ++ i) {
+            String location = LOCATIONS[random.nextInt(LOCATIONS.length)];
+            String layer = LAYERS[random.nextInt(LAYERS.length)];
+            String privateIp = String.format("10.%d.%d.%d", i >> 16 & 0xff, i >> 8 & 0xff, i & 0xff);
+            String publicIp = random.nextInt(4) == 0
+                ? String.format("54.%d.%d.%d", random.nextInt(256), random.nextInt(256), random.nextInt(254) + 1)
+                : null;
+
+            instances.add(new SimpleInstance(
+                String.format("i-%017x", random.nextLong() & Long.MAX_VALUE),
+                String.format("production %s %s serial %d", layer, location, i),
+                location,
+                STATES[random.nextInt(STATES.length)],
+                String.format("2021-%02d-%02dT%02d:%02d:00Z", random.nextInt(12) + 1, random.nextInt(28) + 1, random.nextInt(24), random.nextInt(60)),
+                publicIp,
+                privateIp,
+                publicIp != null ? String.format("%s-%d.example.com", layer, i) : null));
+        }
+
+        return instances;
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import gyro.core.GyroInstance;
+import gyro.core.GyroUI;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TableBenchmark {
+
+    @Param({ "10", "1000", "10000" })
+    public int rows;
+
+    private List<Object[]> cells;
+    private GyroUI ui;
+    private long written;
+
+    @Setup
+    public void setup() {
+        cells = new ArrayList<>(rows);
+
+        for (GyroInstance instance : SyntheticInstances.generate(rows)) {
+            cells.add(new Object[] {
+                instance.getGyroInstanceId(),
+                instance.getGyroInstanceState(),
+                instance.getGyroInstanceLaunchDate(),
+                instance.getGyroInstancePrivateIpAddress() });
+        }
+
+        // Formats every write like the real UI does, without a terminal.
+        ui = (GyroUI) Proxy.newProxyInstance(
+            GyroUI.class.getClassLoader(),
+            new Class<?>[] { GyroUI.class },
+            (proxy, method, arguments) -> {
+                if (method.getName().equals("write")) {
+                    written += String.format((String) arguments[0], (Object[]) arguments[1]).length();
+                }
+
+                return method.getReturnType() == boolean.class ? false : null;
+            });
+    }
+
+    @Benchmark
+    public long buffered() {
+        createTable().write(ui, cells);
+        return written;
+    }
+
+    private Table createTable() {
+        return new Table()
+            .addColumn("Instance ID")
+            .addColumn("State")
+            .addColumn("Launch Date")
+            .addColumn("Hostname");
+    }
+
+}
@@ -29,13 +29,7 @@ import java.util.stream.Collectors;
 import gyro.core.GyroCore;
 import gyro.core.GyroException;
 import gyro.core.GyroInstance;
-import gyro.core.GyroInstances;
-import gyro.core.LocalFileBackend;
 import gyro.core.command.AbstractCommand;
-import gyro.core.resource.DiffableInternals;
-import gyro.core.resource.DiffableType;
-import gyro.core.resource.Resource;
-import gyro.core.scope.FileScope;
 import gyro.core.scope.RootScope;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
@@ -47,15 +41,41 @@ public abstract class AbstractInstanceCommand extends AbstractCommand {
     @Option(names = { "-r", "--refresh" }, description = "Refresh instance data from the cloud provider.")
     public boolean refresh;
 
+    @Option(names = { "--refresh-parallelism" }, description = "Number of instances to refresh concurrently. Defaults to 10.")
+    public int refreshParallelism = 10;
+
+    @Option(names = { "--filter" }, description = "Only use instances matching field=value, where field is one of id, location, "
+        + "state or name. Names may use * and ? wildcards and values may list comma separated alternatives. Matching ignores "
+        + "case. Can be repeated, in which case every filter must match.")
+    public List<String> filters;
+
+    @Option(names = { "--timings" }, description = "Print how long each phase of the command took, in total and per host.")
+    public boolean timings;
+
+    @Option(names = { "--timings-file" }, description = "Write the timing of every phase to this file as JSON.")
+    public String timingsFile;
+
     @Parameters(description = "gyro configuration files to look for instances in.")
     private List<String> files;
 
     protected RootScope current;
 
+    private List<GyroInstance> jumpHosts = new ArrayList<>();
+
+    private List<GyroInstance> jumpHostChain = new ArrayList<>();
+
     public boolean refresh() {
         return refresh;
     }
 
+    public List<GyroInstance> getJumpHosts() {
+        return jumpHosts;
+    }
+
+    public List<GyroInstance> getJumpHostChain() {
+        return jumpHostChain;
+    }
+
     public abstract void doExecute(List<GyroInstance> instances) throws Exception;
 
     @Override
@@ -93,55 +113,91 @@ public abstract class AbstractInstanceCommand extends AbstractCommand {
             }
         }
 
-        current = new RootScope(
-            "../../" + GyroCore.INIT_FILE,
-            new LocalFileBackend(rootDir.resolve(".gyro/state")),
-            null,
-            loadFiles);
+        if (timings && isMachineReadable()) {
+            throw new GyroException("@|bold --timings|@ would mix with the command's output, use @|bold --timings-file|@ instead.");
+        }
 
-        current.evaluate();
+        if (timings || timingsFile != null) {
+            Timings.enable();
+        }
 
-        GyroCore.ui().write("\n");
+        try {
+            execute(rootDir, loadFiles);
 
-        List<FileScope> fileScopes = current.getFileScopes()
-            .stream()
-            .filter(f -> current.getLoadFiles().contains(f.getFile()))
-            .collect(Collectors.toList());
+        } finally {
+            if (timings) {
+                Timings.write(GyroCore.ui());
+            }
 
-        if (fileScopes.isEmpty()) {
-            fileScopes = current.getFileScopes();
+            if (timingsFile != null) {
+                Timings.export(Paths.get(timingsFile));
+            }
         }
+    }
 
-        for (Resource resource : current.findSortedResources()) {
-            boolean scoped = fileScopes.contains(DiffableInternals.getScope(resource).getFileScope());
-
-            if (GyroInstance.class.isAssignableFrom(resource.getClass())) {
-                if (scoped) {
-                    instances.add((GyroInstance) resource);
-                }
-
-                if (refresh()) {
-                    GyroCore.ui().write(
-                        "@|bold,blue Refreshing|@: @|yellow %s|@ -> %s...",
-                        DiffableType.getInstance(resource.getClass()).getName(),
-                        DiffableInternals.getName(resource));
-
-                    resource.refresh();
-                    GyroCore.ui().write("\n");
-                }
-            } else if (GyroInstances.class.isAssignableFrom(resource.getClass())) {
-                if (scoped) {
-                    instances.addAll(((GyroInstances) resource).getInstances());
-                }
+    private void execute(Path rootDir, Set<String> loadFiles) throws Exception {
+        InventorySnapshot snapshot = null;
+
+        if (!refresh()) {
+            try (Timings.Span span = Timings.start("daemon")) {
+                snapshot = InventoryDaemon.fetch(rootDir, loadFiles);
             }
         }
 
-        if (instances.isEmpty()) {
+        if (snapshot == null) {
+            Path snapshotFile = InventorySnapshot.file(rootDir, loadFiles);
+            String fingerprint;
+
+            try (Timings.Span span = Timings.start("snapshot")) {
+                fingerprint = InventorySnapshot.fingerprint(rootDir, loadFiles);
+                snapshot = refresh() ? null : InventorySnapshot.load(snapshotFile, fingerprint);
+            }
+
+            if (snapshot == null) {
+                snapshot = evaluate(rootDir, loadFiles);
+
+                InventorySnapshot.save(
+                    snapshotFile,
+                    fingerprint,
+                    snapshot.getInstances(),
+                    snapshot.getJumpHosts(),
+                    snapshot.getJumpHostChain());
+            }
+        }
+
+        instances.addAll(snapshot.getInstances());
+        jumpHosts = snapshot.getJumpHosts();
+        jumpHostChain = snapshot.getJumpHostChain();
+
+        if (filters != null && !filters.isEmpty()) {
+            try (Timings.Span span = Timings.start("filter")) {
+                instances = new InstanceIndex(instances).filter(filters);
+            }
+        }
+
+        // Machine readable output is still written, as an empty document.
+        if (instances.isEmpty() && !isMachineReadable()) {
             GyroCore.ui().write("@|red No instances found.|@\n");
             return;
         }
 
-        doExecute(instances);
+        try (Timings.Span span = Timings.start("command")) {
+            doExecute(instances);
+        }
+    }
+
+    // Commands writing machine readable output to stdout return true so that
+    // progress and diagnostics stay out of it.
+    protected boolean isMachineReadable() {
+        return false;
+    }
+
+    protected InventorySnapshot evaluate(Path rootDir, Set<String> loadFiles) throws Exception {
+        InstanceEvaluator evaluator = new InstanceEvaluator(rootDir, refresh(), refreshParallelism, isMachineReadable());
+        InventorySnapshot snapshot = evaluator.evaluate(loadFiles);
+
+        current = evaluator.getCurrent();
+        return snapshot;
     }
 
 }
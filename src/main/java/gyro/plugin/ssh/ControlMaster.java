@@ -0,0 +1,125 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class ControlMaster {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ControlMaster.class);
+
+    public static final int DEFAULT_PERSIST = 600;
+
+    private final Path directory;
+    private final int persist;
+
+    public ControlMaster(int persist) {
+        this(getDefaultDirectory(), persist);
+    }
+
+    public ControlMaster(Path directory, int persist) {
+        this.directory = directory;
+        this.persist = persist;
+    }
+
+    // Unix socket paths are limited to ~100 characters, so the sockets live
+    // under the home directory rather than the project and are named with
+    // ssh's fixed length %C hash.
+    public static Path getDefaultDirectory() {
+        return Paths.get(System.getProperty("user.home"), ".gyro", "ssh", "control");
+    }
+
+    public List<String> getOptions() throws IOException {
+        createDirectory();
+
+        return Arrays.asList(
+            "-o", "ControlMaster=auto",
+            "-o", "ControlPath=" + quote(directory.resolve("%C")),
+            "-o", "ControlPersist=" + persist);
+    }
+
+    // Returns the exit code of ssh -O exit for every socket, in the order
+    // they were found. Only sockets whose master confirmed the exit are
+    // deleted, the others are left for the caller to report.
+    public Map<Path, Integer> closeAll() throws IOException, InterruptedException {
+        Map<Path, Integer> exitCodes = new LinkedHashMap<>();
+
+        if (!Files.isDirectory(directory)) {
+            return exitCodes;
+        }
+
+        try (DirectoryStream<Path> sockets = Files.newDirectoryStream(directory)) {
+            for (Path socket : sockets) {
+                Process process = new ProcessBuilder(
+                    "ssh", "-o", "ControlPath=" + quote(socket), "-O", "exit", "gyro-control-master")
+                    .redirectErrorStream(true)
+                    .start();
+
+                process.getOutputStream().close();
+
+                if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                    process.destroyForcibly().waitFor();
+                }
+
+                int exitCode = process.exitValue();
+
+                if (exitCode == 0) {
+                    Files.deleteIfExists(socket);
+
+                } else {
+                    LOGGER.debug("ssh -O exit failed for {} with {}", socket, exitCode);
+                }
+
+                exitCodes.put(socket, exitCode);
+            }
+        }
+
+        return exitCodes;
+    }
+
+    // ssh splits option values on whitespace unless they're double quoted.
+    private static String quote(Path path) {
+        return "\"" + path + "\"";
+    }
+
+    private void createDirectory() throws IOException {
+        if (Files.isDirectory(directory)) {
+            return;
+        }
+
+        Files.createDirectories(directory);
+
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwx------"));
+        }
+    }
+
+}
@@ -0,0 +1,518 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import com.psddev.dari.util.IoUtils;
+import gyro.core.GyroCore;
+import gyro.core.GyroException;
+import gyro.core.GyroInstance;
+import gyro.core.command.VersionCommand;
+import picocli.CommandLine.ArgGroup;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+@Command(name = "copy",
+    header = "Copy files to or from running instances.",
+    synopsisHeading = "%n",
+    descriptionHeading = "%nDescription:%n%n",
+    description = "Copy a file to every instance defined in gyro configuration, or with --pull from every instance into "
+        + "a directory per instance. Connections are routed the same way as ssh.",
+    parameterListHeading = "%nParameters:%n",
+    optionListHeading = "%nOptions:%n",
+    usageHelpWidth = 100,
+    mixinStandardHelpOptions = true,
+    versionProvider = VersionCommand.class
+)
+public class CopyCommand extends AbstractInstanceCommand {
+
+    private static final Table SUMMARY_TABLE = new Table()
+        .addColumn("Instance ID")
+        .addColumn("Hostname")
+        .addColumn("Status")
+        .addColumn("Duration");
+
+    private static final int CHECKSUM_FAILED_EXIT_CODE = 99;
+
+    private static final String STAGE_PREFIX = "/tmp/gyro-copy.";
+    private static final String STAGE_TEMPLATE = STAGE_PREFIX + "XXXXXXXXXX";
+
+    @Option(names = { "--from" }, required = true, description = "Local file to push, or with --pull the remote file to fetch.")
+    public String from;
+
+    @Option(names = { "--to" }, required = true, description = "Remote path to push to, which may be an existing directory, or "
+        + "with --pull the local directory to fetch into. Each instance gets its own sub-directory named after its ID.")
+    public String to;
+
+    @Option(names = { "--pull" }, description = "Fetch --from on every instance instead of pushing to them.")
+    public boolean pull;
+
+    @Option(names = { "--parallel" }, description = "Number of hosts to copy to or from concurrently. Defaults to 10.")
+    public int parallel = 10;
+
+    @Option(names = { "--compress" }, description = "Gzip the file while it's transferred.")
+    public boolean compress;
+
+    @Option(names = { "--no-verify" }, description = "Don't verify the copied file's SHA-256 checksum.")
+    public boolean noVerify;
+
+    @Option(names = { "--relay" }, description = "Upload the file once to each jump host and copy it on to the instances from "
+        + "there. Requires ssh-agent, since the jump host authenticates to the instances with the forwarded agent.")
+    public boolean relay;
+
+    @ArgGroup(exclusive = false)
+    public SshOptions sshOptions;
+
+    @Override
+    public void doExecute(List<GyroInstance> instances) throws Exception {
+        if (sshOptions == null) {
+            sshOptions = new SshOptions();
+        }
+
+        if (sshOptions.useJavaEngine()) {
+            throw new GyroException("The java engine doesn't support copy.");
+        }
+
+        sshOptions.setInstances(instances);
+        sshOptions.setJumpHosts(getJumpHosts());
+        sshOptions.setJumpHostChain(getJumpHostChain());
+
+        if (!sshOptions.useJumpHost) {
+            sshOptions.probeRoutes(instances);
+        }
+
+        OutputMultiplexer multiplexer = new OutputMultiplexer(GyroCore.ui(), false);
+        ParallelExecutor executor = new ParallelExecutor(parallel, true);
+        List<HostResult> results;
+
+        if (pull) {
+            Path directory = Paths.get(to);
+
+            results = executor.execute(instances, sshOptions.releaseJumpHostAfter(instance -> pull(instance, directory, multiplexer)));
+
+        } else {
+            Path source = Paths.get(from);
+
+            if (!Files.isRegularFile(source)) {
+                throw new GyroException(String.format("File not found! @|bold %s|@", from));
+            }
+
+            try (CopyPayload payload = CopyPayload.prepare(source, compress)) {
+                String destination = to.endsWith("/") ? to + source.getFileName() : to;
+
+                GyroCore.ui().write(
+                    "Copying @|green %s|@ (%d bytes) to @|bold %s|@ on %d instance(s)\n",
+                    from,
+                    payload.size(),
+                    destination,
+                    instances.size());
+
+                results = relay
+                    ? relay(instances, payload, destination, multiplexer)
+                    : executor.execute(instances, sshOptions.releaseJumpHostAfter(instance -> push(instance, payload, destination, multiplexer)));
+            }
+        }
+
+        writeSummary(results);
+    }
+
+    private int push(GyroInstance instance, CopyPayload payload, String destination, OutputMultiplexer multiplexer) throws Exception {
+        String command = createWriteCommand(
+            destination,
+            payload.getSource().getFileName().toString(),
+            payload.isCompressed(),
+            noVerify ? null : payload.getChecksum());
+
+        return send(instance, sshOptions.createProcessBuilder(instance, command), payload, multiplexer);
+    }
+
+    // Sends the payload once to every jump host and then has each jump host
+    // copy it on to the instances behind it, so the file crosses the link to
+    // the jump host once instead of once per instance.
+    private List<HostResult> relay(
+        List<GyroInstance> instances,
+        CopyPayload payload,
+        String destination,
+        OutputMultiplexer multiplexer) throws Exception {
+
+        Map<GyroInstance, List<GyroInstance>> groups = new LinkedHashMap<>();
+        List<GyroInstance> direct = new ArrayList<>();
+
+        for (GyroInstance instance : instances) {
+            GyroInstance jumpHost = sshOptions.resolveTarget(instance).getJumpHost();
+
+            if (jumpHost != null) {
+                groups.computeIfAbsent(jumpHost, j -> new ArrayList<>()).add(instance);
+
+            } else {
+                direct.add(instance);
+            }
+        }
+
+        Map<GyroInstance, HostResult> results = new LinkedHashMap<>();
+
+        for (HostResult result : new ParallelExecutor(parallel, true).execute(
+            direct,
+            sshOptions.releaseJumpHostAfter(instance -> push(instance, payload, destination, multiplexer)))) {
+
+            results.put(result.getInstance(), result);
+        }
+
+        for (Map.Entry<GyroInstance, List<GyroInstance>> entry : groups.entrySet()) {
+            GyroInstance jumpHost = entry.getKey();
+
+            GyroCore.ui().write("Staging on jump host @|yellow %s|@\n", jumpHost.getGyroInstanceId());
+
+            // Jump hosts are shared, so every run stages in its own private
+            // directory.
+            String stageDirectory;
+
+            try {
+                stageDirectory = runOnJumpHost(jumpHost, "mktemp -d " + STAGE_TEMPLATE);
+
+            } catch (Exception error) {
+                fail(results, entry.getValue(), error);
+                continue;
+            }
+
+            if (!stageDirectory.startsWith(STAGE_PREFIX) || stageDirectory.contains("\n")) {
+                fail(results, entry.getValue(), new IOException(String.format(
+                    "Unexpected output from mktemp on jump host %s: %s",
+                    jumpHost.getGyroInstanceId(),
+                    stageDirectory)));
+
+                continue;
+            }
+
+            String stage = stageDirectory + "/payload";
+
+            try {
+                ProcessBuilder upload = new ProcessBuilder(sshOptions.createJumpHostArgumentsList(
+                    jumpHost,
+                    createWriteCommand(stage, null, false, noVerify ? null : payload.getPayloadChecksum())));
+
+                int exitCode;
+
+                try {
+                    exitCode = send(jumpHost, upload, payload, multiplexer);
+
+                } catch (Exception error) {
+                    fail(results, entry.getValue(), error);
+                    continue;
+                }
+
+                if (exitCode != 0) {
+                    fail(results, entry.getValue(), new IOException(String.format(
+                        "Unable to stage the file on jump host %s, ssh exited with %d.",
+                        jumpHost.getGyroInstanceId(),
+                        exitCode)));
+
+                    continue;
+                }
+
+                for (HostResult result : new ParallelExecutor(parallel, true).execute(
+                    entry.getValue(),
+                    sshOptions.releaseJumpHostAfter(instance -> forward(jumpHost, instance, stage, payload, destination, multiplexer)))) {
+
+                    results.put(result.getInstance(), result);
+                }
+
+            } finally {
+                try {
+                    runOnJumpHost(jumpHost, "rm -rf " + quote(stageDirectory));
+
+                } catch (Exception error) {
+                    GyroCore.ui().write(
+                        "@|red Unable to remove %s from jump host %s|@: %s\n",
+                        stageDirectory,
+                        jumpHost.getGyroInstanceId(),
+                        error.getMessage());
+                }
+            }
+        }
+
+        List<HostResult> ordered = new ArrayList<>();
+
+        for (GyroInstance instance : instances) {
+            ordered.add(results.get(instance));
+        }
+
+        return ordered;
+    }
+
+    // Runs a short command on the jump host and returns its trimmed output.
+    private String runOnJumpHost(GyroInstance jumpHost, String command) throws Exception {
+        Process process = new ProcessBuilder(sshOptions.createJumpHostArgumentsList(jumpHost, command))
+            .redirectErrorStream(true)
+            .start();
+
+        try {
+            process.getOutputStream().close();
+
+            String output;
+
+            try (InputStream in = process.getInputStream()) {
+                output = new String(IoUtils.toByteArray(in), StandardCharsets.UTF_8).trim();
+            }
+
+            int exitCode = process.waitFor();
+
+            if (exitCode != 0) {
+                throw new IOException(String.format(
+                    "'%s' failed on jump host %s with exit code %d: %s",
+                    command,
+                    jumpHost.getGyroInstanceId(),
+                    exitCode,
+                    output));
+            }
+
+            return output;
+
+        } finally {
+            process.destroy();
+        }
+    }
+
+    private void fail(Map<GyroInstance, HostResult> results, List<GyroInstance> instances, Exception error) {
+        for (GyroInstance instance : instances) {
+            HostResult result = new HostResult(instance);
+
+            result.fail(error);
+            results.put(instance, result);
+            sshOptions.releaseJumpHost(instance);
+        }
+    }
+
+    private int forward(
+        GyroInstance jumpHost,
+        GyroInstance instance,
+        String stage,
+        CopyPayload payload,
+        String destination,
+        OutputMultiplexer multiplexer) throws Exception {
+
+        String address = instance.getGyroInstancePrivateIpAddress();
+        String command = createWriteCommand(
+            destination,
+            payload.getSource().getFileName().toString(),
+            payload.isCompressed(),
+            noVerify ? null : payload.getChecksum());
+
+        String relayCommand = String.format(
+            "ssh -q -o BatchMode=yes -o StrictHostKeyChecking=no %s %s < %s",
+            quote(sshOptions.user != null ? sshOptions.user + "@" + address : address),
+            quote(command),
+            quote(stage));
+
+        Process process = new ProcessBuilder(sshOptions.createJumpHostArgumentsList(jumpHost, relayCommand)).start();
+
+        try {
+            process.getOutputStream().close();
+            multiplexer.attach(instance.getGyroInstanceId(), process).await();
+            return checkExitCode(process.waitFor());
+
+        } finally {
+            process.destroy();
+        }
+    }
+
+    private int send(GyroInstance instance, ProcessBuilder builder, CopyPayload payload, OutputMultiplexer multiplexer) throws Exception {
+        Process process = builder.start();
+
+        try {
+            OutputMultiplexer.Attachment attachment = multiplexer.attach(instance.getGyroInstanceId(), process);
+            IOException writeError = null;
+
+            try {
+                payload.writeTo(process.getOutputStream());
+
+            } catch (IOException ex) {
+                // The exit code below explains why the remote side went away.
+                writeError = ex;
+            }
+
+            int exitCode = process.waitFor();
+
+            attachment.await();
+
+            if (exitCode == 0 && writeError != null) {
+                throw writeError;
+            }
+
+            sshOptions.checkRoute(instance, exitCode);
+
+            return checkExitCode(exitCode);
+
+        } finally {
+            process.destroy();
+        }
+    }
+
+    private int pull(GyroInstance instance, Path directory, OutputMultiplexer multiplexer) throws Exception {
+        Path hostDirectory = directory.resolve(instance.getGyroInstanceId());
+        Path target = hostDirectory.resolve(Paths.get(from).getFileName().toString());
+        Path temp = hostDirectory.resolve(target.getFileName() + ".gyro-copy");
+        String remote = quote(from);
+        MessageDigest digest = CopyPayload.newDigest();
+
+        Files.createDirectories(hostDirectory);
+
+        Process process = sshOptions.createProcessBuilder(instance, compress ? "gzip -c " + remote : "cat " + remote).start();
+        int exitCode;
+
+        try {
+            process.getOutputStream().close();
+
+            OutputMultiplexer.Attachment attachment = multiplexer.attach(
+                instance.getGyroInstanceId(),
+                new ByteArrayInputStream(new byte[0]),
+                process.getErrorStream());
+
+            try (InputStream raw = process.getInputStream();
+                InputStream in = new DigestInputStream(compress ? new GZIPInputStream(raw, 65536) : raw, digest)) {
+
+                Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            exitCode = process.waitFor();
+            attachment.await();
+
+        } finally {
+            process.destroy();
+        }
+
+        if (exitCode != 0) {
+            Files.deleteIfExists(temp);
+            sshOptions.checkRoute(instance, exitCode);
+
+            return exitCode;
+        }
+
+        if (!noVerify) {
+            String checksum = CopyPayload.toHex(digest.digest());
+            Process verify = sshOptions.createProcessBuilder(instance, "sha256sum " + remote).start();
+            String output;
+            int verifyExitCode;
+
+            try {
+                verify.getOutputStream().close();
+
+                try (InputStream in = verify.getInputStream()) {
+                    output = new String(IoUtils.toByteArray(in), StandardCharsets.UTF_8);
+                }
+
+                verifyExitCode = verify.waitFor();
+
+            } finally {
+                verify.destroy();
+            }
+
+            if (verifyExitCode != 0) {
+                Files.deleteIfExists(temp);
+                throw new IOException(String.format("Unable to checksum the remote file, sha256sum exited with %d.", verifyExitCode));
+            }
+
+            if (!output.startsWith(checksum)) {
+                Files.deleteIfExists(temp);
+                throw new IOException("Checksum of the fetched file doesn't match the remote file.");
+            }
+        }
+
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        return 0;
+    }
+
+    // Writes stdin to a temporary file next to the destination, verifies it
+    // and then moves it into place, so a failed copy never leaves a partial
+    // file behind. Given a name, a destination that's an existing directory
+    // gets the file under that name, like cp.
+    private String createWriteCommand(String destination, String name, boolean compressed, String checksum) {
+        StringBuilder command = new StringBuilder();
+
+        command.append("dest=").append(quote(destination)).append("; ");
+
+        if (name != null) {
+            command.append("if [ -d \"$dest\" ]; then dest=\"$dest\"/").append(quote(name)).append("; fi; ");
+        }
+
+        command.append("tmp=\"$dest\".gyro-copy-$$; ");
+        command.append(compressed ? "gzip -dc" : "cat").append(" > \"$tmp\" || { rm -f \"$tmp\"; exit 1; }; ");
+
+        if (checksum != null) {
+            command.append("echo \"").append(checksum).append("  $tmp\" | sha256sum -c --status || { rm -f \"$tmp\"; exit ")
+                .append(CHECKSUM_FAILED_EXIT_CODE)
+                .append("; }; ");
+        }
+
+        command.append("mv -f \"$tmp\" \"$dest\"");
+        return command.toString();
+    }
+
+    private int checkExitCode(int exitCode) throws IOException {
+        if (exitCode == CHECKSUM_FAILED_EXIT_CODE) {
+            throw new IOException("Checksum of the copied file doesn't match the local file.");
+        }
+
+        return exitCode;
+    }
+
+    private static String quote(String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    private void writeSummary(List<HostResult> results) {
+        List<Object[]> rows = new ArrayList<>(results.size());
+
+        for (HostResult result : results) {
+            GyroInstance instance = result.getInstance();
+
+            rows.add(new Object[] {
+                instance.getGyroInstanceId(),
+                instance.getGyroInstanceHostname(),
+                result.getStatus(),
+                result.getDurationMillis() >= 0 ? String.format("%.1fs", result.getDurationMillis() / 1000.0) : "-" });
+        }
+
+        GyroCore.ui().write("\n");
+        SUMMARY_TABLE.write(GyroCore.ui(), rows);
+
+        for (HostResult result : results) {
+            if (result.getError() != null) {
+                GyroCore.ui().write(
+                    "@|red Error on %s|@: %s\n",
+                    result.getInstance().getGyroInstanceId(),
+                    result.getError().getMessage());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+// A file prepared once for sending to many hosts: its checksum is computed
+// and, when compressing, the gzipped copy is written in the same pass. Every
+// transfer then streams from a single shared channel.
+public class CopyPayload implements AutoCloseable {
+
+    private final Path source;
+    private final Path file;
+    private final boolean compressed;
+    private final String checksum;
+    private final String payloadChecksum;
+    private final FileChannel channel;
+
+    private CopyPayload(Path source, Path file, boolean compressed, String checksum, String payloadChecksum) throws IOException {
+        this.source = source;
+        this.file = file;
+        this.compressed = compressed;
+        this.checksum = checksum;
+        this.payloadChecksum = payloadChecksum;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    public static CopyPayload prepare(Path source, boolean compress) throws IOException {
+        if (!compress) {
+            String checksum = sha256(source);
+
+            return new CopyPayload(source, source, false, checksum, checksum);
+        }
+
+        Path compressed = Files.createTempFile("gyro-copy", ".gz");
+        MessageDigest original = newDigest();
+        MessageDigest payload = newDigest();
+
+        compressed.toFile().deleteOnExit();
+
+        try (InputStream in = new DigestInputStream(Files.newInputStream(source), original);
+            OutputStream out = new GZIPOutputStream(new DigestOutputStream(Files.newOutputStream(compressed), payload), 65536)) {
+
+            byte[] buffer = new byte[65536];
+
+            for (int read; (read = in.read(buffer)) > 0;) {
+                out.write(buffer, 0, read);
+            }
+        }
+
+        return new CopyPayload(source, compressed, true, toHex(original.digest()), toHex(payload.digest()));
+    }
+
+    public Path getSource() {
+        return source;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    // Checksum of the original file.
+    public String getChecksum() {
+        return checksum;
+    }
+
+    // Checksum of the bytes that are sent, the gzipped copy when compressing.
+    public String getPayloadChecksum() {
+        return payloadChecksum;
+    }
+
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    // Positional transfers don't move the channel's position, so any number
+    // of hosts can stream from it at the same time.
+    public void writeTo(OutputStream output) throws IOException {
+        long size = channel.size();
+
+        try (WritableByteChannel target = Channels.newChannel(output)) {
+            for (long position = 0; position < size;) {
+                long transferred = channel.transferTo(position, size - position, target);
+
+                // The target blocks, so nothing transferred means the file
+                // got shorter after its size was read.
+                if (transferred <= 0) {
+                    throw new IOException(String.format(
+                        "Unable to read %s past byte %d, it changed while being copied.",
+                        file,
+                        position));
+                }
+
+                position += transferred;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+
+        if (compressed) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public static String sha256(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            byte[] buffer = new byte[65536];
+
+            while (in.read(buffer) > 0) {
+                // Digested as it's read.
+            }
+        }
+
+        return toHex(digest.digest());
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return hex.toString();
+    }
+
+}
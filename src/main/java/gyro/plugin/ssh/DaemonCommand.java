@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.nio.file.Path;
+
+import gyro.core.GyroCore;
+import gyro.core.GyroException;
+import gyro.core.command.AbstractCommand;
+import gyro.core.command.VersionCommand;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+@Command(name = "ssh-daemon",
+    header = "Keep evaluated instances warm for the ssh, list, tunnel and copy commands.",
+    synopsisHeading = "%n",
+    descriptionHeading = "%nDescription:%n%n",
+    description = "Runs in the foreground and answers instance lookups from the other commands of this plugin, so they "
+        + "don't have to evaluate the project each time. Cached instances are dropped whenever the init file or the "
+        + "state changes.",
+    parameterListHeading = "%nParameters:%n",
+    optionListHeading = "%nOptions:%n",
+    usageHelpWidth = 100,
+    mixinStandardHelpOptions = true,
+    versionProvider = VersionCommand.class
+)
+public class DaemonCommand extends AbstractCommand {
+
+    @Option(names = { "--stop" }, description = "Stop the running daemon.")
+    public boolean stop;
+
+    @Override
+    protected void doExecute() throws Exception {
+        Path rootDir = GyroCore.getRootDirectory();
+
+        if (rootDir == null) {
+            throw new GyroException("Not a gyro project directory, use 'gyro init <plugins>...' to create one. See 'gyro help init' for detailed usage.");
+        }
+
+        if (stop) {
+            if (InventoryDaemon.stop(rootDir)) {
+                GyroCore.ui().write("Stopped the daemon.\n");
+
+            } else {
+                GyroCore.ui().write("@|red No daemon is running.|@\n");
+            }
+
+            return;
+        }
+
+        if (InventoryDaemon.stop(rootDir)) {
+            GyroCore.ui().write("Replacing the running daemon.\n");
+        }
+
+        GyroCore.ui().write("Serving instances for @|bold %s|@, stop with @|bold gyro ssh-daemon --stop|@.\n", rootDir);
+
+        new InventoryDaemon(rootDir, loadFiles -> new InstanceEvaluator(rootDir, false, 0, true).evaluate(loadFiles)).run();
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ForwardMetrics {
+
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicLong totalConnections = new AtomicLong();
+    private final AtomicLong failedConnections = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong setupNanos = new AtomicLong();
+    private final AtomicLong maxSetupNanos = new AtomicLong();
+
+    private long lastSampleNanos = System.nanoTime();
+    private long lastBytesSent;
+    private long lastBytesReceived;
+
+    void connectionOpened(long setupNanos) {
+        activeConnections.incrementAndGet();
+        totalConnections.incrementAndGet();
+        this.setupNanos.addAndGet(setupNanos);
+        maxSetupNanos.accumulateAndGet(setupNanos, Math::max);
+    }
+
+    void connectionFailed() {
+        failedConnections.incrementAndGet();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    void sent(int bytes) {
+        bytesSent.addAndGet(bytes);
+    }
+
+    void received(int bytes) {
+        bytesReceived.addAndGet(bytes);
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public long getTotalConnections() {
+        return totalConnections.get();
+    }
+
+    public long getFailedConnections() {
+        return failedConnections.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public double getAverageSetupMillis() {
+        long total = totalConnections.get();
+
+        return total > 0 ? setupNanos.get() / (double) total / TimeUnit.MILLISECONDS.toNanos(1) : 0;
+    }
+
+    public double getMaxSetupMillis() {
+        return maxSetupNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    // Returns bytes per second sent and received since the previous sample.
+    public synchronized double[] sampleRates() {
+        long now = System.nanoTime();
+        long sent = bytesSent.get();
+        long received = bytesReceived.get();
+        double seconds = Math.max(1, now - lastSampleNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        double[] rates = { (sent - lastBytesSent) / seconds, (received - lastBytesReceived) / seconds };
+
+        lastSampleNanos = now;
+        lastBytesSent = sent;
+        lastBytesReceived = received;
+
+        return rates;
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.util.regex.Pattern;
+
+// Shell style pattern where * matches any run of characters and ? a single
+// one. Matching ignores case, like every other instance selector.
+public class Glob {
+
+    private final String glob;
+    private final int wildcard;
+    private final Pattern pattern;
+
+    public Glob(String glob) {
+        this.glob = glob;
+        this.wildcard = indexOfWildcard(glob);
+        this.pattern = wildcard < 0
+            ? null
+            : Pattern.compile(
+                ("\\Q" + glob + "\\E").replace("*", "\\E.*\\Q").replace("?", "\\E.\\Q"),
+                Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+
+    public boolean hasWildcard() {
+        return wildcard >= 0;
+    }
+
+    // The literal part before the first wildcard, or the whole glob.
+    public String getPrefix() {
+        return wildcard < 0 ? glob : glob.substring(0, wildcard);
+    }
+
+    public boolean matches(String value) {
+        if (value == null) {
+            return false;
+        }
+
+        return pattern != null ? pattern.matcher(value).matches() : glob.equalsIgnoreCase(value);
+    }
+
+    private static int indexOfWildcard(String glob) {
+        for (int i = 0; i < glob.length(); ++ i) {
+            char c = glob.charAt(i);
+
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+}
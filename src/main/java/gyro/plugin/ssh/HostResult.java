@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import gyro.core.GyroInstance;
+
+public class HostResult {
+
+    public enum Status {
+        SUCCESS,
+        FAILED,
+        ERROR,
+        TIMEOUT,
+        SKIPPED
+    }
+
+    private final GyroInstance instance;
+
+    private volatile Status status = Status.SKIPPED;
+
+    private volatile Integer exitCode;
+
+    private volatile Exception error;
+
+    private volatile long durationMillis = -1;
+
+    public HostResult(GyroInstance instance) {
+        this.instance = instance;
+    }
+
+    public GyroInstance getInstance() {
+        return instance;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public Integer getExitCode() {
+        return exitCode;
+    }
+
+    public Exception getError() {
+        return error;
+    }
+
+    // -1 if the host was never run.
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public boolean isSuccess() {
+        return status == Status.SUCCESS;
+    }
+
+    public boolean isSkipped() {
+        return status == Status.SKIPPED;
+    }
+
+    void complete(int exitCode) {
+        this.exitCode = exitCode;
+        this.status = exitCode == 0 ? Status.SUCCESS : Status.FAILED;
+    }
+
+    void fail(Exception error) {
+        this.error = error;
+        this.status = Status.ERROR;
+    }
+
+    void timeout(Exception error) {
+        this.error = error;
+        this.status = Status.TIMEOUT;
+    }
+
+    void finish(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+}
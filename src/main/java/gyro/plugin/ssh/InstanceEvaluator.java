@@ -0,0 +1,211 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import gyro.core.GyroCore;
+import gyro.core.GyroException;
+import gyro.core.GyroInstance;
+import gyro.core.GyroInstances;
+import gyro.core.LocalFileBackend;
+import gyro.core.resource.DiffableInternals;
+import gyro.core.resource.DiffableType;
+import gyro.core.resource.Resource;
+import gyro.core.scope.FileScope;
+import gyro.core.scope.RootScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Evaluates the project's state and collects its instances and jump hosts,
+// refreshing them from the cloud provider when asked to. Quiet evaluations
+// write no progress, for machine readable output and the daemon.
+public class InstanceEvaluator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InstanceEvaluator.class);
+
+    private final Path rootDir;
+    private final boolean refresh;
+    private final int refreshParallelism;
+    private final boolean quiet;
+    private RootScope current;
+
+    public InstanceEvaluator(Path rootDir, boolean refresh, int refreshParallelism, boolean quiet) {
+        this.rootDir = rootDir;
+        this.refresh = refresh;
+        this.refreshParallelism = refreshParallelism;
+        this.quiet = quiet;
+    }
+
+    public RootScope getCurrent() {
+        return current;
+    }
+
+    public InventorySnapshot evaluate(Set<String> loadFiles) throws Exception {
+        current = new RootScope(
+            "../../" + GyroCore.INIT_FILE,
+            new LocalFileBackend(rootDir.resolve(".gyro/state")),
+            null,
+            loadFiles);
+
+        try (Timings.Span span = Timings.start("evaluate")) {
+            current.evaluate();
+        }
+
+        if (!quiet) {
+            GyroCore.ui().write("\n");
+        }
+
+        Set<String> requested = new HashSet<>(current.getLoadFiles());
+        List<FileScope> fileScopes = current.getFileScopes()
+            .stream()
+            .filter(f -> requested.contains(f.getFile()))
+            .collect(Collectors.toList());
+
+        // With files given only their scopes are walked, otherwise every
+        // resource is. Neither needs the dependency sort.
+        Collection<?> candidates = fileScopes.isEmpty()
+            ? current.findResources()
+            : fileScopes.stream()
+                .flatMap(f -> f.values().stream())
+                .collect(Collectors.toList());
+
+        List<GyroInstance> instances = new ArrayList<>();
+        Set<Resource> refreshResources = new LinkedHashSet<>();
+
+        for (Object candidate : candidates) {
+            if (candidate instanceof GyroInstance && candidate instanceof Resource) {
+                instances.add((GyroInstance) candidate);
+
+                if (refresh) {
+                    refreshResources.add((Resource) candidate);
+                }
+
+            } else if (candidate instanceof GyroInstances && candidate instanceof Resource) {
+                instances.addAll(((GyroInstances) candidate).getInstances());
+            }
+        }
+
+        JumpHostSettings settings = current.getSettings(JumpHostSettings.class);
+
+        // Jump hosts may live in files that weren't requested.
+        if (refresh) {
+            for (GyroInstance jumpHost : settings.getJumpHosts()) {
+                if (jumpHost instanceof Resource) {
+                    refreshResources.add((Resource) jumpHost);
+                }
+            }
+
+            for (GyroInstance hop : settings.getChain()) {
+                if (hop instanceof Resource) {
+                    refreshResources.add((Resource) hop);
+                }
+            }
+        }
+
+        if (!refreshResources.isEmpty()) {
+            try (Timings.Span span = Timings.start("refresh")) {
+                refresh(new ArrayList<>(refreshResources));
+            }
+        }
+
+        return InventorySnapshot.of(instances, settings.getJumpHosts(), settings.getChain());
+    }
+
+    private void refresh(List<Resource> resources) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(refreshParallelism, resources.size())),
+            new ParallelExecutor.WorkerThreadFactory("gyro-ssh-refresh"));
+
+        Map<Resource, Throwable> failures = new LinkedHashMap<>();
+
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+
+            for (Resource resource : resources) {
+                futures.add(executor.submit(resource::refresh));
+            }
+
+            executor.shutdown();
+
+            boolean progress = !quiet;
+
+            for (int i = 0; i < resources.size(); i++) {
+                Resource resource = resources.get(i);
+
+                if (progress) {
+                    GyroCore.ui().write(
+                        "@|bold,blue Refreshing|@: @|yellow %s|@ -> %s...",
+                        DiffableType.getInstance(resource.getClass()).getName(),
+                        DiffableInternals.getName(resource));
+                }
+
+                try {
+                    futures.get(i).get();
+
+                    if (progress) {
+                        GyroCore.ui().write("\n");
+                    }
+
+                } catch (ExecutionException ex) {
+                    failures.put(resource, ex.getCause());
+
+                    if (progress) {
+                        GyroCore.ui().write(" @|red failed|@\n");
+                    }
+                }
+            }
+
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (failures.isEmpty()) {
+            return;
+        }
+
+        // Instances that couldn't be refreshed would be listed with stale
+        // data, so the whole command fails, and nothing is cached.
+        StringBuilder message = new StringBuilder();
+
+        message.append(String.format("Unable to refresh @|bold %d|@ instance(s):", failures.size()));
+
+        for (Map.Entry<Resource, Throwable> entry : failures.entrySet()) {
+            String type = DiffableType.getInstance(entry.getKey().getClass()).getName();
+            String name = DiffableInternals.getName(entry.getKey());
+
+            LOGGER.debug("Unable to refresh {} -> {}", type, name, entry.getValue());
+            message.append(String.format("\n  @|yellow %s|@ -> %s: %s", type, name, entry.getValue().getMessage()));
+        }
+
+        throw new GyroException(message.toString());
+    }
+
+}
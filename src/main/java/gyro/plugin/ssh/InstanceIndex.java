@@ -0,0 +1,208 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
+import gyro.core.GyroException;
+import gyro.core.GyroInstance;
+
+// Answers --filter expressions such as location=us-east-1a, state=running or
+// name=web-* over an index that's built once per instance list. Values may be
+// comma separated alternatives, every expression must match and case is
+// ignored throughout.
+public class InstanceIndex {
+
+    private final List<GyroInstance> instances;
+    private final Map<String, BitSet> ids;
+    private final Map<String, BitSet> locations;
+    private final Map<String, BitSet> states;
+    private final TrieNode names = new TrieNode();
+
+    public InstanceIndex(List<GyroInstance> instances) {
+        this.instances = new ArrayList<>(instances);
+        this.ids = index(GyroInstance::getGyroInstanceId);
+        this.locations = index(GyroInstance::getGyroInstanceLocation);
+        this.states = index(GyroInstance::getGyroInstanceState);
+
+        for (int i = 0; i < this.instances.size(); ++ i) {
+            String name = this.instances.get(i).getGyroInstanceName();
+
+            if (name != null) {
+                names.add(name.toLowerCase(Locale.ENGLISH), i);
+            }
+        }
+    }
+
+    public List<GyroInstance> filter(List<String> expressions) {
+        BitSet matches = new BitSet(instances.size());
+        matches.set(0, instances.size());
+
+        for (String expression : expressions) {
+            int equals = expression.indexOf('=');
+
+            if (equals <= 0) {
+                throw new GyroException(String.format(
+                    "Invalid filter @|bold %s|@, must be field=value.",
+                    expression));
+            }
+
+            String field = expression.substring(0, equals).trim();
+            BitSet any = new BitSet(instances.size());
+
+            for (String value : expression.substring(equals + 1).split(",")) {
+                any.or(find(field, value.trim()));
+            }
+
+            matches.and(any);
+        }
+
+        List<GyroInstance> filtered = new ArrayList<>(matches.cardinality());
+
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            filtered.add(instances.get(i));
+        }
+
+        return filtered;
+    }
+
+    private BitSet find(String field, String value) {
+        switch (field) {
+            case "id":
+                return lookup(ids, value);
+
+            case "location":
+                return lookup(locations, value);
+
+            case "state":
+                return lookup(states, value);
+
+            case "name":
+                return findNames(value);
+
+            default:
+                throw new GyroException(String.format(
+                    "Unknown filter field @|bold %s|@, must be one of id, location, state or name.",
+                    field));
+        }
+    }
+
+    // The literal part of the glob before its first wildcard narrows the
+    // candidates through the trie and only those are matched against the
+    // whole pattern.
+    private BitSet findNames(String value) {
+        Glob glob = new Glob(value);
+        TrieNode node = names.find(glob.getPrefix().toLowerCase(Locale.ENGLISH));
+        BitSet found = new BitSet(instances.size());
+
+        if (node == null) {
+            return found;
+        }
+
+        if (!glob.hasWildcard()) {
+            if (node.terminal != null) {
+                found.or(node.terminal);
+            }
+
+            return found;
+        }
+
+        BitSet candidates = new BitSet(instances.size());
+        node.collect(candidates);
+
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if (glob.matches(instances.get(i).getGyroInstanceName())) {
+                found.set(i);
+            }
+        }
+
+        return found;
+    }
+
+    private Map<String, BitSet> index(Function<GyroInstance, String> key) {
+        Map<String, BitSet> index = new HashMap<>();
+
+        for (int i = 0; i < instances.size(); ++ i) {
+            String value = key.apply(instances.get(i));
+
+            if (value != null) {
+                index.computeIfAbsent(value.toLowerCase(Locale.ENGLISH), k -> new BitSet()).set(i);
+            }
+        }
+
+        return index;
+    }
+
+    private static BitSet lookup(Map<String, BitSet> index, String value) {
+        BitSet found = index.get(value.toLowerCase(Locale.ENGLISH));
+
+        return found != null ? found : new BitSet();
+    }
+
+    private static class TrieNode {
+
+        private Map<Character, TrieNode> children;
+        private BitSet terminal;
+
+        public void add(String name, int index) {
+            TrieNode node = this;
+
+            for (int i = 0; i < name.length(); ++ i) {
+                if (node.children == null) {
+                    node.children = new HashMap<>();
+                }
+
+                node = node.children.computeIfAbsent(name.charAt(i), c -> new TrieNode());
+            }
+
+            if (node.terminal == null) {
+                node.terminal = new BitSet();
+            }
+
+            node.terminal.set(index);
+        }
+
+        public TrieNode find(String prefix) {
+            TrieNode node = this;
+
+            for (int i = 0; i < prefix.length() && node != null; ++ i) {
+                node = node.children != null ? node.children.get(prefix.charAt(i)) : null;
+            }
+
+            return node;
+        }
+
+        public void collect(BitSet into) {
+            if (terminal != null) {
+                into.or(terminal);
+            }
+
+            if (children != null) {
+                for (TrieNode child : children.values()) {
+                    child.collect(into);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.psddev.dari.util.ObjectUtils;
+import gyro.core.GyroException;
+import gyro.core.GyroInstance;
+
+public abstract class InstanceRecordWriter {
+
+    private static final String[] FIELDS = {
+        "id",
+        "name",
+        "location",
+        "state",
+        "launchDate",
+        "publicIp",
+        "privateIp",
+        "hostname" };
+
+    protected final Writer out;
+
+    protected InstanceRecordWriter(Writer out) {
+        this.out = out;
+    }
+
+    public static InstanceRecordWriter create(String format, Writer out) {
+        switch (format) {
+            case "json":
+                return new Json(out);
+
+            case "jsonl":
+                return new JsonLines(out);
+
+            case "csv":
+                return new Csv(out);
+
+            default:
+                throw new GyroException(String.format(
+                    "Unknown output format @|bold %s|@, must be one of table, json, jsonl or csv.",
+                    format));
+        }
+    }
+
+    public void begin() throws IOException {
+    }
+
+    public void write(GyroInstance instance, String hostname) throws IOException {
+        writeRecord(new String[] {
+            instance.getGyroInstanceId(),
+            instance.getGyroInstanceName(),
+            instance.getGyroInstanceLocation(),
+            instance.getGyroInstanceState(),
+            instance.getGyroInstanceLaunchDate(),
+            instance.getGyroInstancePublicIpAddress(),
+            instance.getGyroInstancePrivateIpAddress(),
+            hostname });
+    }
+
+    public void end() throws IOException {
+        out.flush();
+    }
+
+    protected abstract void writeRecord(String[] values) throws IOException;
+
+    protected String toJson(String[] values) {
+        Map<String, String> record = new LinkedHashMap<>();
+
+        for (int i = 0; i < FIELDS.length; ++ i) {
+            record.put(FIELDS[i], values[i]);
+        }
+
+        return ObjectUtils.toJson(record);
+    }
+
+    private static class JsonLines extends InstanceRecordWriter {
+
+        public JsonLines(Writer out) {
+            super(out);
+        }
+
+        @Override
+        protected void writeRecord(String[] values) throws IOException {
+            out.write(toJson(values));
+            out.write('\n');
+        }
+    }
+
+    private static class Json extends InstanceRecordWriter {
+
+        private boolean first = true;
+
+        public Json(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void begin() throws IOException {
+            out.write('[');
+        }
+
+        @Override
+        protected void writeRecord(String[] values) throws IOException {
+            out.write(first ? "\n  " : ",\n  ");
+            out.write(toJson(values));
+            first = false;
+        }
+
+        @Override
+        public void end() throws IOException {
+            out.write(first ? "]\n" : "\n]\n");
+            super.end();
+        }
+    }
+
+    private static class Csv extends InstanceRecordWriter {
+
+        public Csv(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void begin() throws IOException {
+            writeRecord(FIELDS);
+        }
+
+        @Override
+        protected void writeRecord(String[] values) throws IOException {
+            for (int i = 0; i < values.length; ++ i) {
+                if (i > 0) {
+                    out.write(',');
+                }
+
+                writeField(values[i]);
+            }
+
+            out.write("\r\n");
+        }
+
+        private void writeField(String value) throws IOException {
+            if (value == null) {
+                return;
+            }
+
+            if (value.indexOf(',') < 0
+                && value.indexOf('"') < 0
+                && value.indexOf('\n') < 0
+                && value.indexOf('\r') < 0) {
+
+                out.write(value);
+                return;
+            }
+
+            out.write('"');
+            out.write(value.replace("\"", "\"\""));
+            out.write('"');
+        }
+    }
+
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.psddev.dari.util.ObjectUtils;
+import gyro.core.GyroCore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Keeps evaluated inventories in memory so that commands can skip evaluating
+// the project. It listens on a loopback port, since Java 8 has no Unix domain
+// sockets, and publishes the port with a random token in a file that only the
+// owner can read. Any change to the init file or to the state directory, the
+// only files evaluating the state scope reads, drops every cached inventory.
+public class InventoryDaemon {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InventoryDaemon.class);
+
+    private static final int CONNECT_TIMEOUT = 250;
+    private static final int READ_TIMEOUT = (int) TimeUnit.MINUTES.toMillis(5);
+
+    private final Path rootDir;
+    private final Path initFile;
+    private final Path stateDir;
+    private final Loader loader;
+    private final String token;
+    private final Map<String, InventorySnapshot> cache = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+
+    // Guards the generation check before caching against the watcher
+    // dropping the cache in between.
+    private final Object cacheLock = new Object();
+    private final BlockingQueue<FutureTask<InventorySnapshot>> evaluations = new LinkedBlockingQueue<>();
+    private volatile boolean running = true;
+    private ServerSocket server;
+
+    public InventoryDaemon(Path rootDir, Loader loader) {
+        this.rootDir = rootDir;
+        this.initFile = rootDir.resolve(GyroCore.INIT_FILE);
+        this.stateDir = rootDir.resolve(".gyro/state");
+        this.loader = loader;
+
+        byte[] random = new byte[32];
+
+        new SecureRandom().nextBytes(random);
+        this.token = CopyPayload.toHex(random);
+    }
+
+    public static Path file(Path rootDir) {
+        return rootDir.resolve(".gyro/ssh/daemon.json");
+    }
+
+    // Returns null when no daemon is running or it can't answer, in which
+    // case the caller evaluates the project itself.
+    public static InventorySnapshot fetch(Path rootDir, Set<String> loadFiles) {
+        Map<String, Object> request = new LinkedHashMap<>();
+
+        request.put("files", loadFiles != null ? new ArrayList<>(loadFiles) : null);
+
+        Map<String, Object> response = send(rootDir, request);
+
+        return response != null ? InventorySnapshot.fromMap(response) : null;
+    }
+
+    public static boolean stop(Path rootDir) {
+        Map<String, Object> request = new LinkedHashMap<>();
+
+        request.put("command", "stop");
+        return send(rootDir, request) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> send(Path rootDir, Map<String, Object> request) {
+        Path file = file(rootDir);
+
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+
+        try {
+            Map<String, Object> daemon = (Map<String, Object>) ObjectUtils.fromJson(
+                new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+
+            request.put("token", daemon.get("token"));
+
+            try (Socket socket = new Socket()) {
+                socket.connect(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), ObjectUtils.to(int.class, daemon.get("port"))),
+                    CONNECT_TIMEOUT);
+
+                socket.setSoTimeout(READ_TIMEOUT);
+
+                Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+
+                out.write(ObjectUtils.toJson(request));
+                out.write('\n');
+                out.flush();
+
+                String line = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+                Map<String, Object> response = line != null ? (Map<String, Object>) ObjectUtils.fromJson(line) : null;
+
+                if (response == null || response.get("error") != null) {
+                    LOGGER.debug("Inventory daemon failed: {}", response != null ? response.get("error") : "no response");
+                    return null;
+                }
+
+                return response;
+            }
+
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.debug("Unable to reach the inventory daemon", ex);
+            return null;
+        }
+    }
+
+    // Blocks until stopped. Evaluations run on the calling thread, one at a
+    // time, while connections are handled on worker threads.
+    public void run() throws Exception {
+        ExecutorService workers = Executors.newCachedThreadPool(new ParallelExecutor.WorkerThreadFactory("gyro-ssh-daemon"));
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        Path file = file(rootDir);
+
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+        try {
+            // The init file's directory is watched on its own so that the
+            // state directory is picked up once it's created.
+            initFile.getParent().register(
+                watcher,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+            if (Files.isDirectory(stateDir)) {
+                register(watcher, stateDir);
+            }
+
+            workers.execute(() -> watch(watcher));
+            workers.execute(() -> accept(workers));
+            publish(file);
+
+            while (running) {
+                FutureTask<InventorySnapshot> evaluation = evaluations.poll(1, TimeUnit.SECONDS);
+
+                if (evaluation != null) {
+                    evaluation.run();
+                }
+            }
+
+        } finally {
+            running = false;
+            server.close();
+            watcher.close();
+            workers.shutdownNow();
+
+            // A daemon started in its place has already published its own file.
+            if (Files.isRegularFile(file)
+                && new String(Files.readAllBytes(file), StandardCharsets.UTF_8).contains(token)) {
+
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private void publish(Path file) throws IOException {
+        Map<String, Object> daemon = new LinkedHashMap<>();
+
+        daemon.put("port", server.getLocalPort());
+        daemon.put("token", token);
+
+        Files.createDirectories(file.getParent());
+
+        Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+        }
+
+        Files.write(temp, ObjectUtils.toJson(daemon).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void accept(ExecutorService workers) {
+        while (running) {
+            try {
+                Socket socket = server.accept();
+
+                workers.execute(() -> handle(socket));
+
+            } catch (IOException ex) {
+                if (running) {
+                    LOGGER.debug("Unable to accept an inventory daemon connection", ex);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void handle(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout(READ_TIMEOUT);
+
+            String line = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8)).readLine();
+            Map<String, Object> request = line != null ? (Map<String, Object>) ObjectUtils.fromJson(line) : null;
+            Map<String, Object> response = new LinkedHashMap<>();
+
+            if (request == null || !token.equals(request.get("token"))) {
+                response.put("error", "Invalid token.");
+
+            } else if ("stop".equals(request.get("command"))) {
+                running = false;
+                response.put("status", "stopped");
+
+            } else {
+                List<String> files = (List<String>) request.get("files");
+
+                try {
+                    response.putAll(get(files != null ? new TreeSet<>(files) : null).toMap());
+
+                } catch (Exception ex) {
+                    response.put("error", ex.getMessage() != null ? ex.getMessage() : ex.getClass().getName());
+                }
+            }
+
+            Writer out = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8);
+
+            out.write(ObjectUtils.toJson(response));
+            out.write('\n');
+            out.flush();
+
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.debug("Unable to answer an inventory daemon request", ex);
+        }
+    }
+
+    private InventorySnapshot get(Set<String> loadFiles) throws Exception {
+        String key = loadFiles != null ? String.join("\n", loadFiles) : "";
+        InventorySnapshot snapshot = cache.get(key);
+
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        // An inventory evaluated while files were changing isn't cached.
+        long started = generation.get();
+        FutureTask<InventorySnapshot> evaluation = new FutureTask<>(() -> {
+            InventorySnapshot cached = cache.get(key);
+
+            return cached != null ? cached : loader.load(loadFiles);
+        });
+
+        evaluations.put(evaluation);
+        snapshot = evaluation.get();
+
+        synchronized (cacheLock) {
+            if (generation.get() == started) {
+                cache.put(key, snapshot);
+            }
+        }
+
+        return snapshot;
+    }
+
+    private void watch(WatchService watcher) {
+        while (running) {
+            WatchKey key;
+
+            try {
+                key = watcher.poll(1, TimeUnit.SECONDS);
+
+            } catch (InterruptedException | RuntimeException ex) {
+                return;
+            }
+
+            if (key == null) {
+                continue;
+            }
+
+            Path dir = (Path) key.watchable();
+            boolean changed = false;
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    changed = true;
+                    continue;
+                }
+
+                Path path = dir.resolve((Path) event.context());
+
+                if (!path.equals(initFile) && !path.startsWith(stateDir)) {
+                    continue;
+                }
+
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                    try {
+                        register(watcher, path);
+
+                    } catch (IOException ex) {
+                        LOGGER.debug("Unable to watch {}", path, ex);
+                    }
+                }
+
+                changed = true;
+            }
+
+            key.reset();
+
+            if (changed) {
+                synchronized (cacheLock) {
+                    generation.incrementAndGet();
+                    cache.clear();
+                }
+
+                LOGGER.debug("Project changed, dropped cached inventories");
+            }
+        }
+    }
+
+    private void register(WatchService watcher, Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                dir.register(
+                    watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @FunctionalInterface
+    public interface Loader {
+
+        InventorySnapshot load(Set<String> loadFiles) throws Exception;
+
+    }
+
+}
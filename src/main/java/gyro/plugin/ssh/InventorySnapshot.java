@@ -0,0 +1,257 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.psddev.dari.util.ObjectUtils;
+import gyro.core.GyroCore;
+import gyro.core.GyroInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class InventorySnapshot {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InventorySnapshot.class);
+
+    private static final int VERSION = 2;
+
+    private final List<GyroInstance> instances;
+    private final List<GyroInstance> jumpHosts;
+    private final List<GyroInstance> jumpHostChain;
+
+    private InventorySnapshot(List<GyroInstance> instances, List<GyroInstance> jumpHosts, List<GyroInstance> jumpHostChain) {
+        this.instances = instances;
+        this.jumpHosts = jumpHosts;
+        this.jumpHostChain = jumpHostChain;
+    }
+
+    public static InventorySnapshot of(List<GyroInstance> instances, List<GyroInstance> jumpHosts, List<GyroInstance> jumpHostChain) {
+        return new InventorySnapshot(instances, jumpHosts, jumpHostChain);
+    }
+
+    public List<GyroInstance> getInstances() {
+        return instances;
+    }
+
+    public List<GyroInstance> getJumpHosts() {
+        return jumpHosts;
+    }
+
+    public List<GyroInstance> getJumpHostChain() {
+        return jumpHostChain;
+    }
+
+    public static Path file(Path rootDir, Set<String> loadFiles) {
+        String name = loadFiles == null || loadFiles.isEmpty()
+            ? "all"
+            : sha256(String.join("\n", new TreeSet<>(loadFiles))).substring(0, 16);
+
+        return rootDir.resolve(".gyro/ssh/inventory-" + name + ".json");
+    }
+
+    // Instances come from the state scope, which only reads the init file
+    // and the state files, so the rest of the project isn't looked at.
+    public static String fingerprint(Path rootDir, Set<String> loadFiles) throws IOException {
+        Path initFile = rootDir.resolve(GyroCore.INIT_FILE);
+        Path stateDir = rootDir.resolve(".gyro/state");
+        Map<String, BasicFileAttributes> files = new TreeMap<>();
+
+        if (Files.isRegularFile(initFile)) {
+            files.put(GyroCore.INIT_FILE, Files.readAttributes(initFile, BasicFileAttributes.class));
+        }
+
+        if (Files.isDirectory(stateDir)) {
+            Files.walkFileTree(stateDir, new SimpleFileVisitor<Path>() {
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    files.put(rootDir.relativize(file).toString(), attributes);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        StringBuilder fingerprint = new StringBuilder();
+
+        fingerprint.append(VERSION).append('\n');
+
+        if (loadFiles != null) {
+            for (String loadFile : new TreeSet<>(loadFiles)) {
+                fingerprint.append(loadFile).append('\n');
+            }
+        }
+
+        for (Map.Entry<String, BasicFileAttributes> entry : files.entrySet()) {
+            fingerprint.append(entry.getKey())
+                .append('\t')
+                .append(entry.getValue().size())
+                .append('\t')
+                .append(entry.getValue().lastModifiedTime().toMillis())
+                .append('\n');
+        }
+
+        return sha256(fingerprint.toString());
+    }
+
+    @SuppressWarnings("unchecked")
+    public static InventorySnapshot load(Path file, String fingerprint) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+
+        try {
+            Object json = ObjectUtils.fromJson(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+
+            if (!(json instanceof Map)) {
+                return null;
+            }
+
+            Map<String, Object> map = (Map<String, Object>) json;
+
+            if (!fingerprint.equals(map.get("fingerprint"))) {
+                return null;
+            }
+
+            return fromMap(map);
+
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.debug("Unable to read inventory snapshot {}", file, ex);
+            return null;
+        }
+    }
+
+    public static void save(
+        Path file,
+        String fingerprint,
+        List<GyroInstance> instances,
+        List<GyroInstance> jumpHosts,
+        List<GyroInstance> jumpHostChain) {
+
+        Map<String, Object> map = new LinkedHashMap<>();
+
+        map.put("fingerprint", fingerprint);
+        map.putAll(of(instances, jumpHosts, jumpHostChain).toMap());
+
+        Path temp = null;
+
+        try {
+            Files.createDirectories(file.getParent());
+            temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            Files.write(temp, ObjectUtils.toJson(map).getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (IOException ex) {
+            LOGGER.debug("Unable to write inventory snapshot {}", file, ex);
+
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+
+                } catch (IOException ioe) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+
+        map.put("instances", toJson(instances));
+        map.put("jumpHosts", toJson(jumpHosts));
+        map.put("jumpHostChain", toJson(jumpHostChain));
+        return map;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static InventorySnapshot fromMap(Map<String, Object> map) {
+        return new InventorySnapshot(
+            fromJson((List<Object>) map.get("instances")),
+            fromJson((List<Object>) map.get("jumpHosts")),
+            fromJson((List<Object>) map.get("jumpHostChain")));
+    }
+
+    private static List<Object> toJson(Collection<GyroInstance> instances) {
+        List<Object> list = new ArrayList<>();
+
+        for (GyroInstance instance : instances) {
+            Map<String, Object> map = new LinkedHashMap<>();
+
+            map.put("id", instance.getGyroInstanceId());
+            map.put("name", instance.getGyroInstanceName());
+            map.put("location", instance.getGyroInstanceLocation());
+            map.put("state", instance.getGyroInstanceState());
+            map.put("launchDate", instance.getGyroInstanceLaunchDate());
+            map.put("publicIp", instance.getGyroInstancePublicIpAddress());
+            map.put("privateIp", instance.getGyroInstancePrivateIpAddress());
+            map.put("hostname", instance.getGyroInstanceHostname());
+            list.add(map);
+        }
+
+        return list;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<GyroInstance> fromJson(List<Object> list) {
+        List<GyroInstance> instances = new ArrayList<>();
+
+        if (list != null) {
+            for (Object item : list) {
+                Map<String, Object> map = (Map<String, Object>) item;
+
+                instances.add(new SimpleInstance(
+                    get(map, "id"),
+                    get(map, "name"),
+                    get(map, "location"),
+                    get(map, "state"),
+                    get(map, "launchDate"),
+                    get(map, "publicIp"),
+                    get(map, "privateIp"),
+                    get(map, "hostname")));
+            }
+        }
+
+        return instances;
+    }
+
+    private static String get(Map<String, Object> map, String key) {
+        Object value = map.get(key);
+
+        return value != null ? value.toString() : null;
+    }
+
+    private static String sha256(String value) {
+        return CopyPayload.toHex(CopyPayload.newDigest().digest(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Proxy;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SocketFactory;
+import gyro.core.GyroException;
+import gyro.core.GyroInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class JavaSshEngine implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JavaSshEngine.class);
+
+    private static final String[] DEFAULT_IDENTITIES = { "id_ed25519", "id_ecdsa", "id_rsa" };
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+    private final SshOptions options;
+    private final int port;
+    private final int connectTimeout;
+    private final JSch jsch = new JSch();
+    private final ConcurrentHashMap<String, CompletableFuture<Session>> sessions = new ConcurrentHashMap<>();
+
+    public JavaSshEngine(SshOptions options) throws JSchException {
+        this(options, 22, options.connectTimeout != null
+            ? (int) TimeUnit.SECONDS.toMillis(options.connectTimeout)
+            : DEFAULT_CONNECT_TIMEOUT);
+    }
+
+    public JavaSshEngine(SshOptions options, int port, int connectTimeout) throws JSchException {
+        this.options = options;
+        this.port = port;
+        this.connectTimeout = connectTimeout;
+
+        Path sshDir = Paths.get(System.getProperty("user.home"), ".ssh");
+        Path knownHosts = sshDir.resolve("known_hosts");
+
+        if (Files.isRegularFile(knownHosts)) {
+            jsch.setKnownHosts(knownHosts.toString());
+        }
+
+        if (options.keyfile != null) {
+            jsch.addIdentity(options.keyfile);
+
+        } else {
+            for (String identity : DEFAULT_IDENTITIES) {
+                Path file = sshDir.resolve(identity);
+
+                if (Files.isRegularFile(file)) {
+                    jsch.addIdentity(file.toString());
+                }
+            }
+        }
+    }
+
+    public int execute(GyroInstance instance, String command, OutputMultiplexer multiplexer) throws Exception {
+        return execute(instance, command, multiplexer, 0);
+    }
+
+    // A timeout of 0 waits for the command forever.
+    public int execute(GyroInstance instance, String command, OutputMultiplexer multiplexer, long timeoutMillis) throws Exception {
+        Session session = getSession(instance);
+        ChannelExec channel = (ChannelExec) session.openChannel("exec");
+
+        try {
+            channel.setCommand(command);
+            channel.setInputStream(null);
+
+            InputStream output = channel.getInputStream();
+            InputStream error = channel.getErrStream();
+
+            channel.connect(connectTimeout);
+
+            OutputMultiplexer.Attachment attachment = multiplexer.attach(instance.getGyroInstanceId(), output, error);
+
+            // The pump threads block on the channel's streams. JSch only
+            // closes stderr once the channel itself is closed, which happens
+            // after the exit status has arrived, so nothing polls while the
+            // command runs or afterwards.
+            if (timeoutMillis <= 0) {
+                attachment.await();
+
+            } else if (!attachment.await(timeoutMillis)) {
+                channel.disconnect();
+                attachment.await();
+                throw new TimeoutException(String.format("Command didn't finish within %d ms.", timeoutMillis));
+            }
+
+            return channel.getExitStatus();
+
+        } finally {
+            channel.disconnect();
+        }
+    }
+
+    public Session getSession(GyroInstance instance) throws Exception {
+        SshTarget target = options.resolveTarget(instance);
+        List<String> hops = new ArrayList<>();
+
+        if (target.getJumpHost() != null) {
+            hops.addAll(options.getJumpHostChainAddresses());
+            hops.add(options.getJumpHostAddress(target.getJumpHost()));
+        }
+
+        hops.add(userHost(target.getHostname()));
+
+        return getSession(hops, target.getJumpHost() == null);
+    }
+
+    public Session getJumpHostSession(GyroInstance jumpHost) throws Exception {
+        List<String> hops = options.getJumpHostChainAddresses();
+
+        hops.add(options.getJumpHostAddress(jumpHost));
+
+        return getSession(hops, false);
+    }
+
+    // Like the ssh engine, host keys are only checked strictly when
+    // connecting to an instance directly, every session on a jump host route
+    // accepts unknown keys. Sessions are keyed by the whole path to the host,
+    // since the same private address can exist behind different jump hosts,
+    // and by the checking, so a relaxed session is never reused for a direct
+    // connection.
+    private Session getSession(List<String> hops, boolean strict) throws Exception {
+        Session session = null;
+
+        for (int i = 0; i < hops.size(); i++) {
+            String key = (strict ? "" : "~") + String.join(",", hops.subList(0, i + 1));
+
+            session = getSession(key, hops.get(i), session, strict);
+        }
+
+        return session;
+    }
+
+    private Session getSession(String key, String userHost, Session proxy, boolean strict) throws Exception {
+        CompletableFuture<Session> future = new CompletableFuture<>();
+        CompletableFuture<Session> existing = sessions.putIfAbsent(key, future);
+
+        if (existing != null) {
+            Session session;
+
+            try {
+                session = existing.get();
+
+            } catch (ExecutionException ex) {
+                throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+            }
+
+            if (session.isConnected()) {
+                return session;
+            }
+
+            sessions.remove(key, existing);
+            return getSession(key, userHost, proxy, strict);
+        }
+
+        try {
+            Session session = connect(userHost, proxy, strict);
+
+            future.complete(session);
+            return session;
+
+        } catch (Exception ex) {
+            // Callers already waiting on this attempt share its failure, later
+            // ones try again.
+            future.completeExceptionally(ex);
+            sessions.remove(key, future);
+            throw ex;
+        }
+    }
+
+    private Session connect(String userHost, Session proxy, boolean strict) throws JSchException {
+        int at = userHost.lastIndexOf('@');
+        String user = at > -1 ? userHost.substring(0, at) : System.getProperty("user.name");
+        String host = at > -1 ? userHost.substring(at + 1) : userHost;
+
+        if (host == null || host.equals("null")) {
+            throw new GyroException("Unable to determine the address to connect to.");
+        }
+
+        Session session = jsch.getSession(user, host, port);
+
+        session.setConfig("StrictHostKeyChecking", strict ? "yes" : "no");
+        session.setServerAliveInterval((int) TimeUnit.SECONDS.toMillis(30));
+
+        if (proxy != null) {
+            session.setProxy(new SessionProxy(proxy));
+        }
+
+        LOGGER.debug("Connecting to {}", userHost);
+        session.connect(connectTimeout);
+
+        return session;
+    }
+
+    private String userHost(String host) {
+        return options.user != null ? String.format("%s@%s", options.user, host) : host;
+    }
+
+    @Override
+    public void close() {
+        List<CompletableFuture<Session>> futures = new ArrayList<>(sessions.values());
+
+        sessions.clear();
+
+        for (CompletableFuture<Session> future : futures) {
+            Session session = future.getNow(null);
+
+            if (session != null) {
+                session.disconnect();
+            }
+        }
+    }
+
+    // Carries a session's transport over a direct-tcpip channel opened on
+    // the previous hop, so chained jump hosts never open a socket of their
+    // own.
+    private static class SessionProxy implements Proxy {
+
+        private final Session session;
+        private Channel channel;
+        private InputStream input;
+        private OutputStream output;
+
+        public SessionProxy(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public void connect(SocketFactory socketFactory, String host, int port, int timeout) throws Exception {
+            channel = session.getStreamForwarder(host, port);
+            input = channel.getInputStream();
+            output = channel.getOutputStream();
+            channel.connect(timeout);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return input;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return output;
+        }
+
+        @Override
+        public Socket getSocket() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            if (channel != null) {
+                channel.disconnect();
+            }
+        }
+    }
+
+}
@@ -42,5 +42,10 @@ public class JumpHostDirectiveProcessor extends DirectiveProcessor<RootScope> {
             ObjectUtils.to(
                 new TypeReference<List<GyroInstance>>() {},
                 evaluateBody(scope, node).get("jump-hosts")));
+
+        scope.getSettings(JumpHostSettings.class).setChain(
+            ObjectUtils.to(
+                new TypeReference<List<GyroInstance>>() {},
+                evaluateBody(scope, node).get("chain")));
     }
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import gyro.core.GyroException;
+import gyro.core.GyroInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class JumpHostSelector {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JumpHostSelector.class);
+
+    // Jump hosts slower than this, relative to the fastest candidate, are
+    // only used when the faster ones are busier.
+    private static final long LATENCY_TOLERANCE = TimeUnit.MILLISECONDS.toNanos(25);
+
+    private final List<GyroInstance> jumpHosts;
+    private final boolean probe;
+    private final Map<GyroInstance, Long> latencies = new IdentityHashMap<>();
+    private final Map<GyroInstance, Integer> usage = new IdentityHashMap<>();
+    private final Map<GyroInstance, List<GyroInstance>> selections = new IdentityHashMap<>();
+    private boolean measured;
+
+    public JumpHostSelector(List<GyroInstance> jumpHosts, boolean probe) {
+        this.jumpHosts = jumpHosts;
+        this.probe = probe;
+    }
+
+    public synchronized GyroInstance select(GyroInstance instance) {
+        if (jumpHosts.isEmpty()) {
+            throw new GyroException("Unable to find a jump host.");
+        }
+
+        measure();
+
+        List<GyroInstance> healthy = jumpHosts.stream()
+            .filter(latencies::containsKey)
+            .collect(Collectors.toList());
+
+        // Nothing answered, let ssh report the actual error.
+        if (healthy.isEmpty()) {
+            healthy = jumpHosts;
+        }
+
+        List<GyroInstance> candidates = healthy.stream()
+            .filter(j -> Objects.equals(j.getGyroInstanceLocation(), instance.getGyroInstanceLocation()))
+            .collect(Collectors.toList());
+
+        if (candidates.isEmpty()) {
+            candidates = healthy;
+        }
+
+        long fastest = candidates.stream()
+            .mapToLong(this::getLatency)
+            .min()
+            .orElse(0L);
+
+        GyroInstance selected = null;
+
+        for (GyroInstance candidate : candidates) {
+            if (getLatency(candidate) > Math.max(fastest * 2, fastest + LATENCY_TOLERANCE)) {
+                continue;
+            }
+
+            if (selected == null
+                || getUsage(candidate) < getUsage(selected)
+                || (getUsage(candidate) == getUsage(selected) && getLatency(candidate) < getLatency(selected))) {
+
+                selected = candidate;
+            }
+        }
+
+        usage.put(selected, getUsage(selected) + 1);
+        selections.computeIfAbsent(instance, i -> new ArrayList<>()).add(selected);
+
+        return selected;
+    }
+
+    // Called once the instance's sessions have ended so that usage reflects
+    // the connections currently open through each jump host.
+    public synchronized void release(GyroInstance instance) {
+        List<GyroInstance> selected = selections.remove(instance);
+
+        if (selected == null) {
+            return;
+        }
+
+        for (GyroInstance jumpHost : selected) {
+            usage.computeIfPresent(jumpHost, (j, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    // Healthy jump hosts in the instance's location come first, then other
+    // healthy ones, then those that failed their probe, each by latency.
+    public synchronized List<GyroInstance> rank(GyroInstance instance) {
+        measure();
+
+        List<GyroInstance> ranked = new ArrayList<>(jumpHosts);
+
+        ranked.sort(Comparator
+            .comparing((GyroInstance j) -> !latencies.containsKey(j))
+            .thenComparing(j -> !Objects.equals(j.getGyroInstanceLocation(), instance.getGyroInstanceLocation()))
+            .thenComparingLong(this::getLatency));
+
+        return ranked;
+    }
+
+    private long getLatency(GyroInstance jumpHost) {
+        return latencies.getOrDefault(jumpHost, Long.MAX_VALUE / 4);
+    }
+
+    private int getUsage(GyroInstance jumpHost) {
+        return usage.getOrDefault(jumpHost, 0);
+    }
+
+    private void measure() {
+        if (measured) {
+            return;
+        }
+
+        measured = true;
+
+        if (!probe) {
+            for (GyroInstance jumpHost : jumpHosts) {
+                latencies.put(jumpHost, 0L);
+            }
+
+            return;
+        }
+
+        Map<GyroInstance, InetAddress> addresses = new IdentityHashMap<>();
+
+        for (GyroInstance jumpHost : jumpHosts) {
+            String publicIp = jumpHost.getGyroInstancePublicIpAddress();
+
+            if (publicIp == null) {
+                continue;
+            }
+
+            try {
+                addresses.put(jumpHost, InetAddress.getByName(publicIp));
+
+            } catch (UnknownHostException ex) {
+                LOGGER.debug("Unable to resolve jump host {}", publicIp, ex);
+            }
+        }
+
+        Map<InetAddress, Long> measurements = new SshProbe().measure(new ArrayList<>(addresses.values()));
+
+        for (Map.Entry<GyroInstance, InetAddress> entry : addresses.entrySet()) {
+            Long latency = measurements.get(entry.getValue());
+
+            if (latency != null) {
+                latencies.put(entry.getKey(), latency);
+
+            } else {
+                LOGGER.debug("Jump host {} failed its probe", entry.getKey().getGyroInstanceId());
+            }
+        }
+    }
+
+}
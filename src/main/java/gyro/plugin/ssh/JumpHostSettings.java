@@ -28,6 +28,8 @@ public class JumpHostSettings extends Settings {
 
     private List<String> regions;
 
+    private List<GyroInstance> chain;
+
     public List<GyroInstance> getJumpHosts() {
         return jumpHosts == null ? new ArrayList<>() : jumpHosts;
     }
@@ -43,4 +45,12 @@ public class JumpHostSettings extends Settings {
     public void setRegions(List<String> regions) {
         this.regions = regions;
     }
+
+    public List<GyroInstance> getChain() {
+        return chain == null ? new ArrayList<>() : chain;
+    }
+
+    public void setChain(List<GyroInstance> chain) {
+        this.chain = chain;
+    }
 }
@@ -16,13 +16,21 @@
 
 package gyro.plugin.ssh;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import com.psddev.dari.util.ObjectUtils;
 import gyro.core.GyroCore;
+import gyro.core.GyroException;
 import gyro.core.GyroInstance;
 import gyro.core.command.VersionCommand;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
 
 @Command(name = "list",
     header = "List instances found in provided config file.",
@@ -36,26 +44,65 @@ import picocli.CommandLine.Command;
 public class ListCommand extends AbstractInstanceCommand {
 
     private static final Table LIST_TABLE = new Table()
-        .addColumn("Instance ID", 20)
-        .addColumn("State", 12)
-        .addColumn("Launch Date", 30)
-        .addColumn("Hostname", 65);
+        .addColumn("Instance ID")
+        .addColumn("State")
+        .addColumn("Launch Date")
+        .addColumn("Hostname");
+
+    private static final List<String> OUTPUTS = Arrays.asList("table", "json", "jsonl", "csv");
+
+    @Option(names = { "--output" }, description = "Output format: 'table', 'json', 'jsonl' (one JSON object per line) or 'csv'. Defaults to table.")
+    public String output = "table";
+
+    // Checked up front, since the format decides whether evaluating the
+    // project writes any progress.
+    @Override
+    protected void doExecute() throws Exception {
+        if (!OUTPUTS.contains(output)) {
+            throw new GyroException(String.format(
+                "Unknown output format @|bold %s|@, must be one of table, json, jsonl or csv.",
+                output));
+        }
+
+        super.doExecute();
+    }
 
     @Override
-    public void doExecute(List<GyroInstance> instances) {
-        LIST_TABLE.writeHeader(GyroCore.ui());
+    protected boolean isMachineReadable() {
+        return !"table".equals(output);
+    }
+
+    // Records are written once discovery is done, gyro evaluates the whole
+    // project before any instance is known.
+    @Override
+    public void doExecute(List<GyroInstance> instances) throws IOException {
+        if (!"table".equals(output)) {
+            InstanceRecordWriter writer = InstanceRecordWriter.create(
+                output,
+                new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+
+            writer.begin();
+
+            for (GyroInstance instance : instances) {
+                writer.write(instance, getHostname(instance));
+            }
+
+            writer.end();
+            return;
+        }
+
+        List<Object[]> rows = new ArrayList<>(instances.size());
 
         for (GyroInstance instance : instances) {
-            LIST_TABLE.writeRow(
-                GyroCore.ui(),
+            rows.add(new Object[] {
                 instance.getGyroInstanceId(),
                 instance.getGyroInstanceState(),
                 instance.getGyroInstanceLaunchDate(),
                 getHostname(instance)
-            );
+            });
         }
 
-        LIST_TABLE.writeFooter(GyroCore.ui());
+        LIST_TABLE.write(GyroCore.ui(), rows);
     }
 
     public String getHostname(GyroInstance instance) {
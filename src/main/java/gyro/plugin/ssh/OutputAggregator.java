@@ -0,0 +1,317 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import gyro.core.GyroUI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Captures each host's output instead of printing it, hashing it as it
+// arrives and spilling it to a temporary file once it outgrows the memory
+// limit. Stdout and stderr are captured separately, since the interleaving
+// of the two isn't deterministic. At the end hosts with the same exit status,
+// stdout and stderr are printed once together, optionally with stdout as a
+// diff against the most common one.
+public class OutputAggregator extends OutputMultiplexer implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OutputAggregator.class);
+
+    public static final int DEFAULT_MEMORY_LIMIT = 64 * 1024;
+
+    // Outputs with more lines than this are too expensive to diff.
+    private static final int MAX_DIFF_LINES = 2000;
+
+    private final GyroUI ui;
+    private final int memoryLimit;
+    private final Map<String, Capture> outputs = new ConcurrentHashMap<>();
+    private final Map<String, Capture> errors = new ConcurrentHashMap<>();
+
+    public OutputAggregator(GyroUI ui) {
+        this(ui, DEFAULT_MEMORY_LIMIT);
+    }
+
+    public OutputAggregator(GyroUI ui, int memoryLimit) {
+        super(ui, true);
+        this.ui = ui;
+        this.memoryLimit = memoryLimit;
+    }
+
+    @Override
+    protected void writeLine(String label, byte[] line, boolean error) {
+        Capture capture = (error ? errors : outputs).computeIfAbsent(label, l -> new Capture());
+
+        try {
+            capture.append(line);
+
+        } catch (IOException ex) {
+            LOGGER.debug("Unable to capture output from {}", label, ex);
+        }
+    }
+
+    public void write(List<HostResult> results, boolean diff) throws IOException {
+        Map<String, List<String>> labels = new LinkedHashMap<>();
+        Map<String, HostResult> representatives = new LinkedHashMap<>();
+        Capture empty = new Capture();
+
+        for (HostResult result : results) {
+            if (result.isSkipped()) {
+                continue;
+            }
+
+            String label = result.getInstance().getGyroInstanceId();
+            String key = describe(result)
+                + " " + outputs.getOrDefault(label, empty).hash()
+                + " " + errors.getOrDefault(label, empty).hash();
+
+            labels.computeIfAbsent(key, k -> new ArrayList<>()).add(label);
+            representatives.putIfAbsent(key, result);
+        }
+
+        List<String> keys = labels.keySet()
+            .stream()
+            .sorted(Comparator.comparingInt((String k) -> labels.get(k).size()).reversed())
+            .collect(Collectors.toList());
+
+        List<String> majority = null;
+
+        for (String key : keys) {
+            List<String> hosts = labels.get(key);
+            HostResult result = representatives.get(key);
+            String label = result.getInstance().getGyroInstanceId();
+            Capture output = outputs.getOrDefault(label, empty);
+
+            ui.write("\n@|bold ---------------|@\n");
+            ui.write("@|yellow %s|@ (%d host(s), %s)\n", String.join(",", hosts), hosts.size(), describe(result));
+            ui.write("@|bold ---------------|@\n");
+
+            List<String> lines = diff && majority != null ? output.lines(MAX_DIFF_LINES) : null;
+
+            if (lines != null) {
+                if (!writeDiff(majority, lines)) {
+                    ui.write("(stdout is the same as the most common one)\n");
+                }
+
+            } else {
+                try (BufferedReader reader = output.open()) {
+                    for (String line; (line = reader.readLine()) != null;) {
+                        ui.write("%s\n", line);
+                    }
+                }
+            }
+
+            Capture error = errors.get(label);
+
+            if (error != null) {
+                try (BufferedReader reader = error.open()) {
+                    for (String line; (line = reader.readLine()) != null;) {
+                        ui.write("@|red %s|@\n", line);
+                    }
+                }
+            }
+
+            // The first stdout is the most common one. If it's too large to
+            // diff, every output is printed in full.
+            if (key.equals(keys.get(0))) {
+                majority = output.lines(MAX_DIFF_LINES);
+            }
+        }
+    }
+
+    private String describe(HostResult result) {
+        return result.getExitCode() != null
+            ? "exit " + result.getExitCode()
+            : result.getStatus().name().toLowerCase(Locale.ENGLISH);
+    }
+
+    // Only the changed lines are shown, "-" for lines of the most common
+    // output and "+" for lines of this one, each under the line number of
+    // the most common output where the change starts.
+    private boolean writeDiff(List<String> from, List<String> to) {
+        int prefix = 0;
+
+        while (prefix < from.size() && prefix < to.size() && from.get(prefix).equals(to.get(prefix))) {
+            ++ prefix;
+        }
+
+        int suffix = 0;
+
+        while (suffix < from.size() - prefix
+            && suffix < to.size() - prefix
+            && from.get(from.size() - 1 - suffix).equals(to.get(to.size() - 1 - suffix))) {
+
+            ++ suffix;
+        }
+
+        List<String> a = from.subList(prefix, from.size() - suffix);
+        List<String> b = to.subList(prefix, to.size() - suffix);
+        int[][] lcs = new int[a.size() + 1][b.size() + 1];
+
+        for (int i = a.size() - 1; i >= 0; -- i) {
+            for (int j = b.size() - 1; j >= 0; -- j) {
+                lcs[i][j] = a.get(i).equals(b.get(j))
+                    ? lcs[i + 1][j + 1] + 1
+                    : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+            }
+        }
+
+        int i = 0;
+        int j = 0;
+        boolean inHunk = false;
+        boolean changed = false;
+
+        while (i < a.size() || j < b.size()) {
+            if (i < a.size() && j < b.size() && a.get(i).equals(b.get(j))) {
+                inHunk = false;
+                ++ i;
+                ++ j;
+                continue;
+            }
+
+            if (!inHunk) {
+                ui.write("@|bold @@ line %d @@|@\n", prefix + i + 1);
+                inHunk = true;
+                changed = true;
+            }
+
+            if (i < a.size() && (j >= b.size() || lcs[i + 1][j] >= lcs[i][j + 1])) {
+                ui.write("@|red -%s|@\n", a.get(i ++));
+
+            } else {
+                ui.write("@|green +%s|@\n", b.get(j ++));
+            }
+        }
+
+        return changed;
+    }
+
+    @Override
+    public void close() {
+        for (Capture capture : outputs.values()) {
+            capture.delete();
+        }
+
+        for (Capture capture : errors.values()) {
+            capture.delete();
+        }
+    }
+
+    private class Capture {
+
+        private final MessageDigest digest = CopyPayload.newDigest();
+        private final ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private Path spill;
+        private OutputStream spillOut;
+        private long lineCount;
+        private String hash;
+
+        public synchronized void append(byte[] line) throws IOException {
+            digest.update(line);
+            digest.update((byte) '\n');
+            ++ lineCount;
+
+            if (spillOut == null && memory.size() + line.length + 1 > memoryLimit) {
+                spill = Files.createTempFile("gyro-ssh-output", ".txt");
+                spillOut = new BufferedOutputStream(Files.newOutputStream(spill));
+                memory.writeTo(spillOut);
+                memory.reset();
+            }
+
+            OutputStream out = spillOut != null ? spillOut : memory;
+
+            out.write(line);
+            out.write('\n');
+        }
+
+        public synchronized String hash() throws IOException {
+            if (hash == null) {
+                hash = CopyPayload.toHex(digest.digest());
+
+                if (spillOut != null) {
+                    spillOut.close();
+                }
+            }
+
+            return hash;
+        }
+
+        public long lineCount() {
+            return lineCount;
+        }
+
+        public BufferedReader open() throws IOException {
+            InputStream in = spill != null
+                ? Files.newInputStream(spill)
+                : new ByteArrayInputStream(memory.toByteArray());
+
+            return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        }
+
+        // Null if there are more than max lines.
+        public List<String> lines(int max) throws IOException {
+            if (lineCount > max) {
+                return null;
+            }
+
+            List<String> lines = new ArrayList<>();
+
+            try (BufferedReader reader = open()) {
+                for (String line; (line = reader.readLine()) != null;) {
+                    lines.add(line);
+                }
+            }
+
+            return lines;
+        }
+
+        public void delete() {
+            try {
+                if (spillOut != null) {
+                    spillOut.close();
+                }
+
+                if (spill != null) {
+                    Files.deleteIfExists(spill);
+                }
+
+            } catch (IOException ex) {
+                LOGGER.debug("Unable to delete {}", spill, ex);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import gyro.core.GyroUI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class OutputMultiplexer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OutputMultiplexer.class);
+
+    public static final int DEFAULT_MAX_LINE_LENGTH = 8192;
+
+    private final GyroUI ui;
+    private final boolean raw;
+    private final int maxLineLength;
+
+    public OutputMultiplexer(GyroUI ui, boolean raw) {
+        this(ui, raw, DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    public OutputMultiplexer(GyroUI ui, boolean raw, int maxLineLength) {
+        this.ui = ui;
+        this.raw = raw;
+        this.maxLineLength = maxLineLength;
+    }
+
+    public Attachment attach(String label, Process process) {
+        return attach(label, process.getInputStream(), process.getErrorStream());
+    }
+
+    public Attachment attach(String label, InputStream output, InputStream error) {
+        Thread out = start(label, output, false);
+        Thread err = start(label, error, true);
+
+        return new Attachment(out, err);
+    }
+
+    private Thread start(String label, InputStream input, boolean error) {
+        Thread thread = new Thread(() -> pump(label, input, error), "gyro-ssh-output-" + label);
+
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void pump(String label, InputStream input, boolean error) {
+        byte[] buffer = new byte[4096];
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+        try (InputStream in = input) {
+            for (int read; (read = in.read(buffer)) > 0;) {
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer[i];
+
+                    if (b == '\n') {
+                        write(label, line, error);
+
+                    } else if (b != '\r') {
+                        line.write(b);
+
+                        // A line longer than the limit is written in pieces so
+                        // that a single host can't hold an unbounded buffer.
+                        if (line.size() >= maxLineLength) {
+                            split(label, line, error);
+                        }
+                    }
+                }
+            }
+
+        } catch (IOException ex) {
+            LOGGER.debug("Unable to read output from {}", label, ex);
+        }
+
+        if (line.size() > 0) {
+            write(label, line, error);
+        }
+    }
+
+    // Writes the line up to the last complete UTF-8 character and keeps the
+    // bytes of a character cut in half for the next piece.
+    private void split(String label, ByteArrayOutputStream line, boolean error) {
+        byte[] bytes = line.toByteArray();
+        int end = findCharacterBoundary(bytes);
+
+        line.reset();
+        line.write(bytes, end, bytes.length - end);
+        writeLine(label, end < bytes.length ? Arrays.copyOf(bytes, end) : bytes, error);
+    }
+
+    static int findCharacterBoundary(byte[] bytes) {
+        int length = bytes.length;
+
+        for (int i = length - 1; i >= 0 && i >= length - 4; i--) {
+            int b = bytes[i] & 0xFF;
+
+            // Continuation byte, keep looking for the start of the character.
+            if ((b & 0xC0) == 0x80) {
+                continue;
+            }
+
+            int size = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+
+            return i > 0 && i + size > length ? i : length;
+        }
+
+        return length;
+    }
+
+    private void write(String label, ByteArrayOutputStream line, boolean error) {
+        byte[] bytes = line.toByteArray();
+
+        line.reset();
+        writeLine(label, bytes, error);
+    }
+
+    // Called from the pump threads with each line, without its line break.
+    protected void writeLine(String label, byte[] line, boolean error) {
+        String text = new String(line, StandardCharsets.UTF_8);
+
+        synchronized (this) {
+            if (raw) {
+                ui.write("%s\n", text);
+
+            } else if (error) {
+                ui.write("@|red [%s]|@ %s\n", label, text);
+
+            } else {
+                ui.write("@|yellow [%s]|@ %s\n", label, text);
+            }
+        }
+    }
+
+    public static class Attachment {
+
+        private final Thread out;
+        private final Thread err;
+
+        private Attachment(Thread out, Thread err) {
+            this.out = out;
+            this.err = err;
+        }
+
+        public void await() throws InterruptedException {
+            out.join();
+            err.join();
+        }
+
+        // Returns false if either stream is still open once the timeout has
+        // passed.
+        public boolean await(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+
+            for (Thread thread : new Thread[] { out, err }) {
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining > 0) {
+                    thread.join(remaining);
+                }
+            }
+
+            return !out.isAlive() && !err.isAlive();
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import gyro.core.GyroInstance;
+
+public class ParallelExecutor {
+
+    private final int parallelism;
+    private final boolean continueOnFailure;
+    private final AtomicBoolean stopped = new AtomicBoolean();
+
+    public ParallelExecutor(int parallelism, boolean continueOnFailure) {
+        this.parallelism = Math.max(1, parallelism);
+        this.continueOnFailure = continueOnFailure;
+    }
+
+    public boolean isStopped() {
+        return stopped.get();
+    }
+
+    public List<HostResult> execute(List<GyroInstance> instances, HostTask task) throws InterruptedException {
+        List<HostResult> results = new ArrayList<>();
+
+        for (GyroInstance instance : instances) {
+            results.add(new HostResult(instance));
+        }
+
+        if (results.isEmpty()) {
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min(parallelism, results.size()),
+            new WorkerThreadFactory("gyro-ssh"));
+
+        try {
+            for (HostResult result : results) {
+                executor.execute(() -> run(result, task));
+            }
+
+            executor.shutdown();
+
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Keep waiting for running hosts.
+            }
+
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return results;
+    }
+
+    private void run(HostResult result, HostTask task) {
+        if (stopped.get()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            result.complete(task.run(result.getInstance()));
+
+        } catch (TimeoutException error) {
+            result.timeout(error);
+
+        } catch (Exception error) {
+            result.fail(error);
+        }
+
+        result.finish(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        if (!result.isSuccess() && !continueOnFailure) {
+            stopped.set(true);
+        }
+    }
+
+    @FunctionalInterface
+    public interface HostTask {
+
+        int run(GyroInstance instance) throws Exception;
+
+    }
+
+    static class WorkerThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        public WorkerThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Only loaded when jdk.jfr is available, see Timings.
+@Name("gyro.ssh.Phase")
+@Label("Gyro SSH Phase")
+@Category({ "Gyro", "SSH" })
+@Description("A timed phase of a gyro ssh plugin command")
+class PhaseEvent extends Event {
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Host")
+    String host;
+
+    static Object start() {
+        PhaseEvent event = new PhaseEvent();
+
+        event.begin();
+        return event;
+    }
+
+    static void finish(Object begun, String phase, String host) {
+        PhaseEvent event = (PhaseEvent) begun;
+
+        event.end();
+
+        if (event.shouldCommit()) {
+            event.phase = phase;
+            event.host = host;
+            event.commit();
+        }
+    }
+
+}
@@ -0,0 +1,565 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Forwards local ports over ssh channels with a single selector thread for
+// every local connection. Buffers are on the heap and pooled: JSch only reads
+// and writes byte arrays, so a direct buffer would need an extra copy on
+// every transfer.
+public class PortForwarder implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PortForwarder.class);
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int POOLED_BUFFERS = 256;
+
+    // Local data waiting for the channel beyond this stops reading from the
+    // local client until the channel catches up.
+    private static final int MAX_PENDING_BYTES = 256 * 1024;
+
+    // JSch refills the channel's window as soon as data is handed over, so
+    // the only way to hold the remote side back would be to block the
+    // session thread, stalling every other channel on the session. A local
+    // client that falls this far behind is disconnected instead.
+    private static final int MAX_BUFFERED_BYTES = 8 * 1024 * 1024;
+
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    private static final int SENDER_THREADS = 8;
+
+    // Buffers a connection sends before giving its sender thread to the
+    // next connection in line.
+    private static final int SEND_BATCH = 4;
+
+    private final ForwardMetrics metrics;
+    private final Selector selector;
+    private final BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(POOLED_BUFFERS);
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService connector = Executors.newFixedThreadPool(
+        8,
+        new ParallelExecutor.WorkerThreadFactory("gyro-ssh-forward-connect"));
+
+    // Writes to a channel block while the remote side's window is full,
+    // which is what holds a fast local client back, so they happen off the
+    // selector thread on a fixed number of threads shared by every
+    // connection.
+    private final ExecutorService sender = Executors.newFixedThreadPool(
+        SENDER_THREADS,
+        new ParallelExecutor.WorkerThreadFactory("gyro-ssh-forward-send"));
+
+    private Thread thread;
+    private volatile boolean running = true;
+
+    public PortForwarder(ForwardMetrics metrics) throws IOException {
+        this.metrics = metrics;
+        this.selector = Selector.open();
+    }
+
+    public int addForward(Session session, int localPort, String remoteHost, int remotePort) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), localPort));
+        server.configureBlocking(false);
+
+        Listener listener = new Listener(session, remoteHost, remotePort);
+
+        listeners.add(listener);
+
+        execute(() -> {
+            try {
+                server.register(selector, SelectionKey.OP_ACCEPT, listener);
+
+            } catch (IOException ex) {
+                LOGGER.warn("Unable to listen on port {}", localPort, ex);
+            }
+        });
+
+        return server.socket().getLocalPort();
+    }
+
+    // New connections through the old session go through the new one
+    // instead, connections already open on the old one are left to close.
+    public void replaceSession(Session oldSession, Session newSession) {
+        for (Listener listener : listeners) {
+            if (listener.session == oldSession) {
+                listener.session = newSession;
+            }
+        }
+    }
+
+    public synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this::run, "gyro-ssh-forward");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public ForwardMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select(1000);
+
+                for (Runnable task; (task = tasks.poll()) != null;) {
+                    task.run();
+                }
+
+                for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+                    SelectionKey key = i.next();
+                    i.remove();
+
+                    if (key.isValid()) {
+                        handle(key);
+                    }
+                }
+
+            } catch (IOException ex) {
+                LOGGER.warn("Port forwarding failed", ex);
+            }
+        }
+    }
+
+    // A failure only takes down its own connection, never the selector thread.
+    private void handle(SelectionKey key) {
+        try {
+            if (key.isAcceptable()) {
+                accept(key);
+
+            } else {
+                Connection connection = (Connection) key.attachment();
+
+                if (key.isReadable()) {
+                    connection.read();
+                }
+
+                if (key.isValid() && key.isWritable()) {
+                    connection.write();
+                }
+            }
+
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.warn("Port forwarding failed", ex);
+
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).close();
+            }
+        }
+    }
+
+    private void accept(SelectionKey key) throws IOException {
+        Listener listener = (Listener) key.attachment();
+        SocketChannel client = ((ServerSocketChannel) key.channel()).accept();
+
+        if (client == null) {
+            return;
+        }
+
+        long accepted = System.nanoTime();
+
+        client.configureBlocking(false);
+
+        // Opening the channel waits for a round trip to the jump host, so it
+        // happens off the selector thread.
+        connector.execute(() -> {
+            Connection connection = new Connection(client);
+
+            try {
+                Channel channel = listener.session.getStreamForwarder(listener.remoteHost, listener.remotePort);
+
+                channel.setOutputStream(connection.sink);
+                connection.remote = channel.getOutputStream();
+                connection.channel = channel;
+                channel.connect(CONNECT_TIMEOUT);
+
+                metrics.connectionOpened(System.nanoTime() - accepted);
+                connection.open = true;
+
+                execute(() -> {
+                    try {
+                        connection.key = client.register(selector, SelectionKey.OP_READ, connection);
+                        connection.updateInterest();
+
+                    } catch (IOException ex) {
+                        connection.close();
+                    }
+                });
+
+            } catch (Exception ex) {
+                LOGGER.debug("Unable to open forward to {}:{}", listener.remoteHost, listener.remotePort, ex);
+                metrics.connectionFailed();
+                connection.close();
+            }
+        });
+    }
+
+    private ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    private void release(ByteBuffer buffer) {
+        buffer.clear();
+        buffers.offer(buffer);
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        connector.shutdownNow();
+        sender.shutdownNow();
+        selector.wakeup();
+
+        if (thread != null) {
+            try {
+                thread.join(5000);
+
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+
+            if (attachment instanceof Connection) {
+                ((Connection) attachment).close();
+
+            } else {
+                key.channel().close();
+            }
+        }
+
+        selector.close();
+    }
+
+    private static class Listener {
+
+        private volatile Session session;
+        private final String remoteHost;
+        private final int remotePort;
+
+        public Listener(Session session, String remoteHost, int remotePort) {
+            this.session = session;
+            this.remoteHost = remoteHost;
+            this.remotePort = remotePort;
+        }
+    }
+
+    private class Connection {
+
+        private final SocketChannel client;
+        private final Queue<ByteBuffer> pending = new ArrayDeque<>();
+        private final Queue<ByteBuffer> outgoing = new ArrayDeque<>();
+        private final RemoteSink sink = new RemoteSink();
+        private SelectionKey key;
+        private Channel channel;
+        private OutputStream remote;
+        private int pendingBytes;
+        private int outgoingBytes;
+        private boolean sending;
+        private boolean localClosed;
+        private boolean localEofSent;
+        private boolean remoteClosed;
+        private boolean outputShutdown;
+        private volatile boolean open;
+        private boolean closed;
+
+        public Connection(SocketChannel client) {
+            this.client = client;
+        }
+
+        // Selector thread: local client -> queue for the remote.
+        public void read() {
+            ByteBuffer buffer = acquire();
+            int read;
+
+            try {
+                read = client.read(buffer);
+
+            } catch (IOException ex) {
+                release(buffer);
+                close();
+                return;
+            }
+
+            synchronized (this) {
+                if (read > 0) {
+                    buffer.flip();
+                    outgoing.add(buffer);
+                    outgoingBytes += read;
+
+                } else {
+                    release(buffer);
+                    localClosed |= read < 0;
+                }
+
+                if (read != 0 && !sending) {
+                    sending = true;
+                    sender.execute(this::send);
+                }
+            }
+
+            updateInterest();
+        }
+
+        // Sender thread: queued local data -> remote. Local EOF is passed on
+        // as channel EOF so that the remote side can still answer.
+        private void send() {
+            try {
+                for (int batch = 0; batch < SEND_BATCH; ++ batch) {
+                    ByteBuffer buffer;
+                    boolean eof;
+
+                    synchronized (this) {
+                        buffer = outgoing.poll();
+                        eof = buffer == null && localClosed && !localEofSent;
+                        sending = buffer != null;
+                    }
+
+                    if (buffer == null) {
+                        if (eof) {
+                            remote.close();
+
+                            synchronized (this) {
+                                localEofSent = true;
+                            }
+                        }
+
+                        execute(this::updateInterest);
+                        return;
+                    }
+
+                    int length = buffer.remaining();
+
+                    try {
+                        remote.write(buffer.array(), buffer.position(), length);
+                        remote.flush();
+
+                    } finally {
+                        release(buffer);
+                    }
+
+                    metrics.sent(length);
+
+                    synchronized (this) {
+                        outgoingBytes -= length;
+                    }
+
+                    execute(this::updateInterest);
+                }
+
+                // More is queued, so go to the back of the line instead of
+                // holding on to the thread.
+                sender.execute(this::send);
+
+            } catch (IOException | RejectedExecutionException ex) {
+                close();
+            }
+        }
+
+        // Selector thread: queued remote data -> local client.
+        public void write() {
+            try {
+                synchronized (this) {
+                    while (!pending.isEmpty()) {
+                        ByteBuffer buffer = pending.peek();
+                        int written = client.write(buffer);
+
+                        pendingBytes -= written;
+
+                        if (buffer.hasRemaining()) {
+                            break;
+                        }
+
+                        release(pending.poll());
+                    }
+                }
+
+            } catch (IOException ex) {
+                close();
+                return;
+            }
+
+            updateInterest();
+        }
+
+        public void updateInterest() {
+            if (key == null || !key.isValid()) {
+                return;
+            }
+
+            boolean read;
+            boolean flush;
+            boolean shutdown;
+            boolean done;
+
+            synchronized (this) {
+                read = !localClosed && outgoingBytes < MAX_PENDING_BYTES;
+                flush = !pending.isEmpty();
+                shutdown = remoteClosed && !flush && !outputShutdown;
+                done = remoteClosed && !flush && (localEofSent || channel.isClosed());
+                outputShutdown |= shutdown;
+            }
+
+            if (done) {
+                close();
+                return;
+            }
+
+            if (shutdown) {
+                try {
+                    client.shutdownOutput();
+
+                } catch (IOException ex) {
+                    close();
+                    return;
+                }
+            }
+
+            key.interestOps((read ? SelectionKey.OP_READ : 0) | (flush ? SelectionKey.OP_WRITE : 0));
+        }
+
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+
+                closed = true;
+
+                while (!pending.isEmpty()) {
+                    release(pending.poll());
+                }
+
+                while (!outgoing.isEmpty()) {
+                    release(outgoing.poll());
+                }
+            }
+
+            if (open) {
+                metrics.connectionClosed();
+            }
+
+            if (key != null) {
+                key.cancel();
+            }
+
+            try {
+                client.close();
+
+            } catch (IOException ex) {
+                // Ignore
+            }
+
+            if (channel != null) {
+                channel.disconnect();
+            }
+        }
+
+        // Session thread: remote -> queue for the local client. Never blocks,
+        // see MAX_BUFFERED_BYTES.
+        private class RemoteSink extends OutputStream {
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                boolean overflow;
+
+                synchronized (Connection.this) {
+                    if (closed) {
+                        throw new IOException("Local connection closed");
+                    }
+
+                    overflow = pendingBytes + length > MAX_BUFFERED_BYTES;
+
+                    if (!overflow) {
+                        for (int end = offset + length; offset < end;) {
+                            ByteBuffer buffer = acquire();
+                            int chunk = Math.min(buffer.remaining(), end - offset);
+
+                            buffer.put(bytes, offset, chunk);
+                            buffer.flip();
+                            pending.add(buffer);
+                            pendingBytes += chunk;
+                            offset += chunk;
+                        }
+                    }
+                }
+
+                if (overflow) {
+                    LOGGER.warn("Local client too slow, closing forwarded connection");
+                    close();
+                    throw new IOException("Local client too slow");
+                }
+
+                metrics.received(length);
+                execute(Connection.this::updateInterest);
+            }
+
+            @Override
+            public void close() {
+                synchronized (Connection.this) {
+                    remoteClosed = true;
+                }
+
+                execute(Connection.this::updateInterest);
+            }
+        }
+    }
+
+}
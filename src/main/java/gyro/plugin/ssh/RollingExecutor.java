@@ -0,0 +1,192 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import gyro.core.GyroCore;
+import gyro.core.GyroException;
+import gyro.core.GyroInstance;
+
+// Runs a task over the instances in batches: an optional canary batch first,
+// then batches of a fixed count or percentage of the hosts. Hosts within a
+// batch run in parallel and the rollout stops when a failure threshold is
+// crossed, leaving the remaining hosts skipped.
+public class RollingExecutor {
+
+    private final int parallelism;
+    private final boolean continueOnFailure;
+    private final String batchSize;
+    private final int canary;
+    private final long pauseSeconds;
+    private final Integer maxFailures;
+    private final Integer maxFailurePercent;
+
+    private volatile String stopReason;
+
+    public RollingExecutor(
+        int parallelism,
+        boolean continueOnFailure,
+        String batchSize,
+        int canary,
+        long pauseSeconds,
+        Integer maxFailures,
+        Integer maxFailurePercent) {
+
+        this.parallelism = parallelism;
+        this.continueOnFailure = continueOnFailure;
+        this.batchSize = batchSize;
+        this.canary = Math.max(0, canary);
+        this.pauseSeconds = Math.max(0, pauseSeconds);
+        this.maxFailures = maxFailures;
+        this.maxFailurePercent = maxFailurePercent;
+    }
+
+    public boolean isStopped() {
+        return stopReason != null;
+    }
+
+    public String getStopReason() {
+        return stopReason;
+    }
+
+    public List<HostResult> execute(List<GyroInstance> instances, ParallelExecutor.HostTask task) throws InterruptedException {
+        List<List<GyroInstance>> batches = createBatches(instances);
+        List<HostResult> results = new ArrayList<>(instances.size());
+        boolean thresholds = maxFailures != null || maxFailurePercent != null;
+        int attempted = 0;
+        int failures = 0;
+
+        for (int i = 0; i < batches.size(); ++ i) {
+            List<GyroInstance> batch = batches.get(i);
+
+            if (isStopped()) {
+                for (GyroInstance instance : batch) {
+                    results.add(new HostResult(instance));
+                }
+
+                continue;
+            }
+
+            if (i > 0 && pauseSeconds > 0) {
+                GyroCore.ui().write("\nPausing @|bold %d|@ second(s) before the next batch.\n", pauseSeconds);
+                TimeUnit.SECONDS.sleep(pauseSeconds);
+            }
+
+            if (batches.size() > 1) {
+                GyroCore.ui().write(
+                    "\n@|bold,blue %s %d/%d|@: %d host(s)\n",
+                    i == 0 && canary > 0 ? "Canary" : "Batch",
+                    i + 1,
+                    batches.size(),
+                    batch.size());
+            }
+
+            // With thresholds the whole batch runs and failures are judged
+            // afterwards, otherwise the first failure stops it right away.
+            ParallelExecutor executor = new ParallelExecutor(parallelism, continueOnFailure || thresholds);
+            List<HostResult> batchResults = executor.execute(batch, task);
+
+            results.addAll(batchResults);
+
+            for (HostResult result : batchResults) {
+                if (!result.isSkipped()) {
+                    ++ attempted;
+
+                    if (!result.isSuccess()) {
+                        ++ failures;
+                    }
+                }
+            }
+
+            // After the last batch there's nothing left to stop, unless the
+            // batch itself was cut short.
+            if (i == batches.size() - 1 && batchResults.stream().noneMatch(HostResult::isSkipped)) {
+                break;
+            }
+
+            if (executor.isStopped()) {
+                stopReason = "a host failed";
+
+            } else if (failures > 0 && i == 0 && canary > 0 && !continueOnFailure) {
+                stopReason = String.format("%d canary host(s) failed", failures);
+
+            } else if (maxFailures != null && failures > maxFailures) {
+                stopReason = String.format("%d failure(s) exceeded --max-failures %d", failures, maxFailures);
+
+            } else if (maxFailurePercent != null && failures * 100 > maxFailurePercent * attempted) {
+                stopReason = String.format(
+                    "%d of %d host(s) failed, exceeding --max-failure-percent %d",
+                    failures,
+                    attempted,
+                    maxFailurePercent);
+            }
+        }
+
+        return results;
+    }
+
+    private List<List<GyroInstance>> createBatches(List<GyroInstance> instances) {
+        List<List<GyroInstance>> batches = new ArrayList<>();
+        int start = Math.min(canary, instances.size());
+
+        if (start > 0) {
+            batches.add(instances.subList(0, start));
+        }
+
+        int size = parseBatchSize(instances.size());
+
+        for (int i = start; i < instances.size(); i += size) {
+            batches.add(instances.subList(i, Math.min(i + size, instances.size())));
+        }
+
+        return batches;
+    }
+
+    private int parseBatchSize(int total) {
+        if (batchSize == null) {
+            return Math.max(1, total);
+        }
+
+        try {
+            if (batchSize.endsWith("%")) {
+                int percent = Integer.parseInt(batchSize.substring(0, batchSize.length() - 1).trim());
+
+                if (percent > 0 && percent <= 100) {
+                    return Math.max(1, (total * percent + 99) / 100);
+                }
+
+            } else {
+                int count = Integer.parseInt(batchSize.trim());
+
+                if (count > 0) {
+                    return count;
+                }
+            }
+
+        } catch (NumberFormatException ex) {
+            // Reported below.
+        }
+
+        throw new GyroException(String.format(
+            "Invalid batch size @|bold %s|@, must be a positive count or a percentage such as 25%%.",
+            batchSize));
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class RouteCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RouteCache.class);
+
+    public static final long DEFAULT_TTL = 3600;
+
+    private final Path file;
+    private final long ttlMillis;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty;
+
+    private RouteCache(Path file, long ttlMillis) {
+        this.file = file;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public static RouteCache load(Path file, long ttlSeconds) {
+        RouteCache cache = new RouteCache(file, ttlSeconds * 1000L);
+
+        if (!Files.isRegularFile(file)) {
+            return cache;
+        }
+
+        Properties properties = new Properties();
+
+        try (InputStream input = Files.newInputStream(file)) {
+            properties.load(input);
+
+        } catch (IOException ex) {
+            LOGGER.debug("Unable to read route cache {}", file, ex);
+            return cache;
+        }
+
+        for (String key : properties.stringPropertyNames()) {
+            Entry entry = Entry.parse(properties.getProperty(key));
+
+            if (entry != null && !cache.isExpired(entry)) {
+                cache.entries.put(key, entry);
+            }
+        }
+
+        return cache;
+    }
+
+    public Route get(String key) {
+        Entry entry = entries.get(key);
+
+        if (entry == null) {
+            return null;
+        }
+
+        if (isExpired(entry)) {
+            invalidate(key);
+            return null;
+        }
+
+        return entry.route;
+    }
+
+    public void put(String key, Route route) {
+        entries.put(key, new Entry(route, System.currentTimeMillis()));
+        dirty = true;
+    }
+
+    public void invalidate(String key) {
+        if (entries.remove(key) != null) {
+            dirty = true;
+        }
+    }
+
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+
+        Properties properties = new Properties();
+
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            properties.setProperty(e.getKey(), e.getValue().toString());
+        }
+
+        Path temp = null;
+
+        try {
+            Files.createDirectories(file.getParent());
+            temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+
+            try (OutputStream output = Files.newOutputStream(temp)) {
+                properties.store(output, "gyro-ssh-plugin route cache");
+            }
+
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+
+        } catch (IOException ex) {
+            LOGGER.debug("Unable to write route cache {}", file, ex);
+
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+
+                } catch (IOException ioe) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private boolean isExpired(Entry entry) {
+        return System.currentTimeMillis() - entry.timestamp > ttlMillis;
+    }
+
+    private static class Entry {
+
+        private final Route route;
+        private final long timestamp;
+
+        public Entry(Route route, long timestamp) {
+            this.route = route;
+            this.timestamp = timestamp;
+        }
+
+        public static Entry parse(String value) {
+            String[] parts = value.split(" ");
+
+            if (parts.length != 2) {
+                return null;
+            }
+
+            try {
+                return new Entry(Route.valueOf(parts[0]), Long.parseLong(parts[1]));
+
+            } catch (IllegalArgumentException ex) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return route.name() + " " + timestamp;
+        }
+    }
+
+}
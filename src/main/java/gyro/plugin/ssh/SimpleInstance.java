@@ -0,0 +1,94 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import gyro.core.GyroInstance;
+
+// An instance detached from its resource, such as one read back from an
+// inventory snapshot.
+public class SimpleInstance implements GyroInstance {
+
+    private final String id;
+    private final String name;
+    private final String location;
+    private final String state;
+    private final String launchDate;
+    private final String publicIp;
+    private final String privateIp;
+    private final String hostname;
+
+    public SimpleInstance(
+        String id,
+        String name,
+        String location,
+        String state,
+        String launchDate,
+        String publicIp,
+        String privateIp,
+        String hostname) {
+
+        this.id = id;
+        this.name = name;
+        this.location = location;
+        this.state = state;
+        this.launchDate = launchDate;
+        this.publicIp = publicIp;
+        this.privateIp = privateIp;
+        this.hostname = hostname;
+    }
+
+    @Override
+    public String getGyroInstanceId() {
+        return id;
+    }
+
+    @Override
+    public String getGyroInstanceState() {
+        return state;
+    }
+
+    @Override
+    public String getGyroInstancePrivateIpAddress() {
+        return privateIp;
+    }
+
+    @Override
+    public String getGyroInstancePublicIpAddress() {
+        return publicIp;
+    }
+
+    @Override
+    public String getGyroInstanceHostname() {
+        return hostname;
+    }
+
+    @Override
+    public String getGyroInstanceName() {
+        return name;
+    }
+
+    @Override
+    public String getGyroInstanceLaunchDate() {
+        return launchDate;
+    }
+
+    @Override
+    public String getGyroInstanceLocation() {
+        return location;
+    }
+
+}
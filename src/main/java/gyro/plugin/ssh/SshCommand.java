@@ -18,10 +18,20 @@ package gyro.plugin.ssh;
 
 import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.Writer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
+import com.jcraft.jsch.JSchException;
 import gyro.core.GyroCore;
+import gyro.core.GyroException;
 import gyro.core.GyroInstance;
 import gyro.core.command.VersionCommand;
 import picocli.CommandLine.ArgGroup;
@@ -43,6 +53,21 @@ import picocli.CommandLine.Option;
 )
 public class SshCommand extends AbstractInstanceCommand {
 
+    private static final Table SUMMARY_TABLE = new Table()
+        .addColumn("Instance ID")
+        .addColumn("Hostname")
+        .addColumn("Status")
+        .addColumn("Exit Code")
+        .addColumn("Duration");
+
+    private static final Table SLOWEST_TABLE = new Table()
+        .addColumn("Slowest Hosts")
+        .addColumn("Duration");
+
+    private static final int SLOWEST_HOSTS = 5;
+
+    private static final long TERMINATE_GRACE_SECONDS = 5;
+
     @Option(names = { "-e", "--execute" }, description = "Command to execute on host(s).")
     public String command;
 
@@ -52,6 +77,43 @@ public class SshCommand extends AbstractInstanceCommand {
     @Option(names = { "--tmux" }, description = "Open a tmux session with each host.")
     public boolean useTmux;
 
+    @Option(names = { "--parallel" }, description = "Number of hosts to run -e command on concurrently. Defaults to 1.")
+    public int parallel = 1;
+
+    @Option(names = { "--output" }, description = "How to write -e command output: 'prefixed' (lines prefixed with the instance ID), "
+        + "'raw' (whole lines without a prefix) or 'inherit' (passed straight through). Defaults to prefixed when running "
+        + "in parallel and inherit otherwise.")
+    public String output;
+
+    @Option(names = { "--timeout" }, description = "Seconds to let -e command run on each host before killing it and marking the host TIMEOUT.")
+    public Long timeout;
+
+    @Option(names = { "--batch-size" }, description = "Run -e command in batches of this many hosts, or a percentage of them such as 25%. "
+        + "Hosts within a batch run --parallel at a time. Defaults to all hosts in one batch.")
+    public String batchSize;
+
+    @Option(names = { "--canary" }, description = "Run -e command on this many hosts first and stop if any of them fail.")
+    public int canary;
+
+    @Option(names = { "--batch-pause" }, description = "Seconds to wait between batches.")
+    public long batchPause;
+
+    @Option(names = { "--max-failures" }, description = "Stop starting new batches once more than this many hosts have failed.")
+    public Integer maxFailures;
+
+    @Option(names = { "--max-failure-percent" }, description = "Stop starting new batches once more than this percentage of the hosts run so far have failed.")
+    public Integer maxFailurePercent;
+
+    @Option(names = { "-b", "--aggregate" }, description = "Collect the output of -e command and print each distinct output once "
+        + "with the hosts that produced it.")
+    public boolean aggregate;
+
+    @Option(names = { "--diff" }, description = "With --aggregate, print outputs other than the most common one as a diff against it.")
+    public boolean diff;
+
+    @Option(names = { "--close-masters" }, description = "Close all multiplexed connections opened with --multiplex and exit.")
+    public boolean closeMasters;
+
     @ArgGroup(exclusive = false)
     public SshOptions sshOptions;
 
@@ -67,6 +129,51 @@ public class SshCommand extends AbstractInstanceCommand {
         return useTmux;
     }
 
+    public int parallel() {
+        return parallel;
+    }
+
+    @Override
+    protected void doExecute() throws Exception {
+        if (closeMasters) {
+            Map<Path, Integer> exitCodes = new ControlMaster(ControlMaster.DEFAULT_PERSIST).closeAll();
+            int failed = 0;
+
+            for (Map.Entry<Path, Integer> entry : exitCodes.entrySet()) {
+                if (entry.getValue() != 0) {
+                    GyroCore.ui().write(
+                        "@|yellow Unable to close|@ %s, ssh exited with %d.\n",
+                        entry.getKey(),
+                        entry.getValue());
+
+                    ++failed;
+                }
+            }
+
+            GyroCore.ui().write("Closed @|bold %d|@ multiplexed connection(s).\n", exitCodes.size() - failed);
+
+            if (failed > 0) {
+                throw new GyroException(String.format("Unable to close @|bold %d|@ multiplexed connection(s)!", failed));
+            }
+
+            return;
+        }
+
+        if (aggregate && command == null) {
+            throw new GyroException("@|bold --aggregate|@ only applies to commands run with @|bold -e|@.");
+        }
+
+        if (aggregate && output != null) {
+            throw new GyroException("@|bold --aggregate|@ can't be combined with @|bold --output|@.");
+        }
+
+        if (diff && !aggregate) {
+            throw new GyroException("@|bold --diff|@ requires @|bold --aggregate|@.");
+        }
+
+        super.doExecute();
+    }
+
     @Override
     public void doExecute(List<GyroInstance> instances) throws Exception {
         if (sshOptions == null) {
@@ -74,22 +181,48 @@ public class SshCommand extends AbstractInstanceCommand {
         }
 
         sshOptions.setInstances(instances);
-        sshOptions.setJumpHosts(current.getSettings(JumpHostSettings.class).getJumpHosts());
+        sshOptions.setJumpHosts(getJumpHosts());
+        sshOptions.setJumpHostChain(getJumpHostChain());
 
-        if (command != null) {
-            for (GyroInstance instance : instances) {
-                GyroCore.ui().write("Executing @|green %s|@ on @|yellow %s|@\n", command, instance.getGyroInstanceHostname());
+        if ((command != null || useTmux) && !sshOptions.useJumpHost) {
+            sshOptions.probeRoutes(instances);
+        }
 
-                int exitCode = sshOptions.createProcessBuilder(instance, command)
-                    .inheritIO()
-                    .start()
-                    .waitFor();
+        if (command != null && sshOptions.useJavaEngine()) {
+            RollingExecutor executor = createExecutor();
+            OutputMultiplexer multiplexer = createOutputMultiplexer();
+            OutputMultiplexer javaMultiplexer = multiplexer != null ? multiplexer : new OutputMultiplexer(GyroCore.ui(), true);
+            List<HostResult> results;
 
-                if (exitCode != 0 && !force) {
-                    GyroCore.ui().write("@|red Command failed!|@\n");
-                    return;
-                }
+            try (JavaSshEngine engine = new JavaSshEngine(sshOptions)) {
+                results = executor.execute(instances, sshOptions.releaseJumpHostAfter(instance -> execute(engine, instance, javaMultiplexer)));
+                writeAggregate(multiplexer, results);
+
+            } finally {
+                closeAggregator(multiplexer);
+            }
+
+            writeSummary(results);
+            checkResults(executor, results);
+        } else if (sshOptions.useJavaEngine()) {
+            throw new GyroException("The java engine only supports running commands with -e.");
+
+        } else if (command != null) {
+            RollingExecutor executor = createExecutor();
+            OutputMultiplexer multiplexer = createOutputMultiplexer();
+
+            List<HostResult> results;
+
+            try {
+                results = executor.execute(instances, sshOptions.releaseJumpHostAfter(instance -> execute(instance, multiplexer)));
+                writeAggregate(multiplexer, results);
+
+            } finally {
+                closeAggregator(multiplexer);
             }
+
+            writeSummary(results);
+            checkResults(executor, results);
         } else if (useTmux) {
             String tmuxScript = "#!/bin/sh\n";
             tmuxScript += "SESSION=`tmux new-session -d -P`\n";
@@ -125,21 +258,216 @@ public class SshCommand extends AbstractInstanceCommand {
 
             new ProcessBuilder(temp.toString()).inheritIO().start().waitFor();
         } else if (instances.size() == 1) {
-            GyroInstance instance = instances.get(0);
-            sshOptions.createProcessBuilder(instance)
-                .inheritIO()
-                .start()
-                .waitFor();
+            connect(instances.get(0));
 
         } else {
-            GyroInstance instance = sshOptions.pickInstance(instances);
+            connect(sshOptions.pickInstance(instances));
+        }
+
+    }
+
+    private RollingExecutor createExecutor() {
+        return new RollingExecutor(parallel, force, batchSize, canary, batchPause, maxFailures, maxFailurePercent);
+    }
+
+    private OutputMultiplexer createOutputMultiplexer() {
+        if (aggregate) {
+            return new OutputAggregator(GyroCore.ui());
+        }
+
+        String mode = output != null ? output : (parallel > 1 ? "prefixed" : "inherit");
+
+        switch (mode) {
+            case "prefixed":
+                return new OutputMultiplexer(GyroCore.ui(), false);
+
+            case "raw":
+                return new OutputMultiplexer(GyroCore.ui(), true);
 
-            sshOptions.createProcessBuilder(instance)
-                .inheritIO()
-                .start()
-                .waitFor();
+            case "inherit":
+                return null;
+
+            default:
+                throw new GyroException(String.format(
+                    "Unknown output mode @|bold %s|@, must be one of prefixed, raw or inherit.",
+                    mode));
+        }
+    }
+
+    private void writeAggregate(OutputMultiplexer multiplexer, List<HostResult> results) throws IOException {
+        if (multiplexer instanceof OutputAggregator) {
+            ((OutputAggregator) multiplexer).write(results, diff);
         }
+    }
+
+    private void closeAggregator(OutputMultiplexer multiplexer) {
+        if (multiplexer instanceof OutputAggregator) {
+            ((OutputAggregator) multiplexer).close();
+        }
+    }
 
+    private int execute(GyroInstance instance, OutputMultiplexer multiplexer) throws Exception {
+        if (!aggregate) {
+            GyroCore.ui().write("Executing @|green %s|@ on @|yellow %s|@\n", command, instance.getGyroInstanceHostname());
+        }
+
+        ProcessBuilder builder = sshOptions.createProcessBuilder(instance, command);
+
+        if (multiplexer == null) {
+            Process process = launch(instance, builder.inheritIO());
+
+            try {
+                return checkConnection(instance, waitFor(instance, process));
+
+            } finally {
+                process.destroy();
+            }
+        }
+
+        Process process = launch(instance, builder);
+
+        try {
+            process.getOutputStream().close();
+
+            OutputMultiplexer.Attachment attachment = multiplexer.attach(instance.getGyroInstanceId(), process);
+
+            try {
+                return checkConnection(instance, waitFor(instance, process));
+
+            } finally {
+                attachment.await();
+            }
+
+        } finally {
+            process.destroy();
+        }
+    }
+
+    private int execute(JavaSshEngine engine, GyroInstance instance, OutputMultiplexer multiplexer) throws Exception {
+        if (!aggregate) {
+            GyroCore.ui().write("Executing @|green %s|@ on @|yellow %s|@\n", command, instance.getGyroInstanceHostname());
+        }
+
+        try (Timings.Span span = Timings.start("remote", instance.getGyroInstanceId())) {
+            return engine.execute(instance, command, multiplexer, timeout != null ? TimeUnit.SECONDS.toMillis(timeout) : 0);
+
+        } catch (JSchException ex) {
+            // Treated like ssh exiting with 255, the route is only dropped
+            // if the instance no longer answers on it.
+            sshOptions.checkRoute(instance, SshOptions.CONNECTION_FAILED_EXIT_CODE);
+            throw ex;
+        }
+    }
+
+    private Process launch(GyroInstance instance, ProcessBuilder builder) throws Exception {
+        try (Timings.Span span = Timings.start("launch", instance.getGyroInstanceId())) {
+            return builder.start();
+        }
+    }
+
+    private int waitFor(GyroInstance instance, Process process) throws Exception {
+        try (Timings.Span span = Timings.start("remote", instance.getGyroInstanceId())) {
+            return waitFor(process);
+        }
+    }
+
+    private int waitFor(Process process) throws Exception {
+        if (timeout == null) {
+            return process.waitFor();
+        }
+
+        if (process.waitFor(timeout, TimeUnit.SECONDS)) {
+            return process.exitValue();
+        }
+
+        // Java 8 can't walk the process tree, so ssh is asked to exit first
+        // and gets to take its ProxyCommand child down with it.
+        process.destroy();
+
+        if (!process.waitFor(TERMINATE_GRACE_SECONDS, TimeUnit.SECONDS)) {
+            process.destroyForcibly().waitFor();
+        }
+
+        throw new TimeoutException(String.format("Command didn't finish within %d second(s).", timeout));
+    }
+
+    private void connect(GyroInstance instance) throws Exception {
+        checkConnection(instance, sshOptions.createProcessBuilder(instance)
+            .inheritIO()
+            .start()
+            .waitFor());
+    }
+
+    private int checkConnection(GyroInstance instance, int exitCode) {
+        sshOptions.checkRoute(instance, exitCode);
+
+        return exitCode;
+    }
+
+    // A failed host fails the command, unless --continue says to ignore exit
+    // codes and the rollout wasn't stopped early, in which case the failure
+    // is only reported.
+    private void checkResults(RollingExecutor executor, List<HostResult> results) {
+        long failures = results.stream()
+            .filter(r -> !r.isSkipped() && !r.isSuccess())
+            .count();
+
+        if (failures == 0) {
+            return;
+        }
+
+        String message = executor.isStopped()
+            ? String.format("Command failed on %d host(s), stopped because %s!", failures, executor.getStopReason())
+            : String.format("Command failed on %d host(s)!", failures);
+
+        if (force && !executor.isStopped()) {
+            GyroCore.ui().write("@|red %s|@\n", message);
+
+        } else {
+            throw new GyroException(message);
+        }
+    }
+
+    private String formatDuration(long durationMillis) {
+        return durationMillis >= 0 ? String.format("%.1fs", durationMillis / 1000.0) : "-";
+    }
+
+    private void writeSummary(List<HostResult> results) {
+        List<Object[]> rows = new ArrayList<>(results.size());
+
+        for (HostResult result : results) {
+            GyroInstance instance = result.getInstance();
+
+            rows.add(new Object[] {
+                instance.getGyroInstanceId(),
+                instance.getGyroInstanceHostname(),
+                result.getStatus(),
+                result.getExitCode() != null ? result.getExitCode() : "-",
+                formatDuration(result.getDurationMillis()) });
+        }
+
+        GyroCore.ui().write("\n");
+        SUMMARY_TABLE.write(GyroCore.ui(), rows);
+
+        if (results.size() > 1) {
+            List<Object[]> slowest = results.stream()
+                .filter(r -> r.getDurationMillis() >= 0)
+                .sorted(Comparator.comparingLong(HostResult::getDurationMillis).reversed())
+                .limit(SLOWEST_HOSTS)
+                .map(r -> new Object[] { r.getInstance().getGyroInstanceId(), formatDuration(r.getDurationMillis()) })
+                .collect(Collectors.toList());
+
+            SLOWEST_TABLE.write(GyroCore.ui(), slowest);
+        }
+
+        for (HostResult result : results) {
+            if (result.getError() != null) {
+                GyroCore.ui().write(
+                    "@|red Error on %s|@: %s\n",
+                    result.getInstance().getGyroInstanceId(),
+                    result.getError().getMessage());
+            }
+        }
     }
 
 }
@@ -18,12 +18,20 @@ package gyro.plugin.ssh;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.psddev.dari.util.ObjectUtils;
 import gyro.core.GyroCore;
@@ -37,12 +45,14 @@ public class SshOptions {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SshOptions.class);
 
+    public static final int CONNECTION_FAILED_EXIT_CODE = 255;
+
     private static final Table SSH_TABLE = new Table()
-        .addColumn("#", 3)
-        .addColumn("Location", 10)
-        .addColumn("Name", 54)
-        .addColumn("Launch Date", 30)
-        .addColumn("Hostname", 55);
+        .addColumn("#")
+        .addColumn("Location")
+        .addColumn("Name")
+        .addColumn("Launch Date")
+        .addColumn("Hostname");
 
     @Option(names = {"-u", "--user"}, description = "User to log in as.")
     public String user;
@@ -59,8 +69,49 @@ public class SshOptions {
     @Option(names = { "-j", "--jumphost" }, description = "Jump through jump host.")
     public boolean useJumpHost;
 
+    @Option(names = { "--proxy-jump" }, description = "Connect through jump hosts with ssh -J instead of a ProxyCommand. "
+        + "Always used when the jump host directive has a chain. Jump hosts authenticate using ssh-agent or ssh config.")
+    public boolean proxyJump;
+
+    @Option(names = { "-m", "--multiplex" }, description = "Reuse ssh connections to instances and jump hosts (ssh ControlMaster).")
+    public boolean multiplex;
+
+    @Option(names = { "--control-persist" }, description = "Seconds an idle multiplexed connection stays open. Defaults to 600.")
+    public Integer controlPersist;
+
+    @Option(names = { "--engine" }, description = "Ssh implementation to use: 'ssh' (the ssh command) or 'java' (built-in client, "
+        + "-e commands and tunnels only). Defaults to ssh.")
+    public String engine;
+
+    @Option(names = { "--connect-timeout" }, description = "Seconds to wait for an ssh connection to be established.")
+    public Integer connectTimeout;
+
+    @Option(names = { "--no-cache" }, description = "Don't use or update the cached routes to instances.")
+    public boolean noCache;
+
+    @Option(names = { "--cache-ttl" }, description = "Seconds a cached route to an instance stays valid. Defaults to 3600.")
+    public Long cacheTtl;
+
     private List<GyroInstance> jumpHosts = new ArrayList<>();
+    private List<GyroInstance> jumpHostChain = new ArrayList<>();
     private List<GyroInstance> instances = new ArrayList<>();
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+    private JumpHostSelector jumpHostSelector;
+    private RouteCache routeCache;
+
+    public boolean useJavaEngine() {
+        if (engine == null || engine.equals("ssh")) {
+            return false;
+
+        } else if (engine.equals("java")) {
+            return true;
+
+        } else {
+            throw new GyroException(String.format(
+                "Unknown engine @|bold %s|@, must be one of ssh or java.",
+                engine));
+        }
+    }
 
     public List<GyroInstance> getJumpHosts() {
         return jumpHosts;
@@ -68,6 +119,16 @@ public class SshOptions {
 
     public void setJumpHosts(List<GyroInstance> jumpHosts) {
         this.jumpHosts = jumpHosts;
+        this.jumpHostSelector = null;
+    }
+
+    public List<GyroInstance> getJumpHostChain() {
+        return jumpHostChain;
+    }
+
+    public void setJumpHostChain(List<GyroInstance> jumpHostChain) {
+        this.jumpHostChain = jumpHostChain;
+        this.jumpHostSelector = null;
     }
 
     public List<GyroInstance> getInstances() {
@@ -78,29 +139,36 @@ public class SshOptions {
         this.instances = instances;
     }
 
-    public List<String> createArgumentsList(GyroInstance instance, String... additionalArguments) throws Exception {
+    public SshTarget resolveTarget(GyroInstance instance) throws Exception {
         String hostname = instance.getGyroInstancePrivateIpAddress();
+        boolean useJumpHost = this.useJumpHost;
 
         if (!useJumpHost) {
-            try {
-                InetAddress inet = InetAddress.getByName(hostname);
-                if (!hasService(inet, 22)) {
-                    hostname = instance.getGyroInstancePublicIpAddress();
-                }
-            } catch (Exception ex) {
+            Route route = findRoute(instance);
+
+            if (route == Route.PUBLIC) {
                 hostname = instance.getGyroInstancePublicIpAddress();
+
+            } else if (route == Route.JUMP_HOST) {
+                useJumpHost = true;
             }
         }
 
-        if (hostname == null) {
-            hostname = instance.getGyroInstancePrivateIpAddress();
-            useJumpHost = true;
-        }
+        return new SshTarget(hostname, useJumpHost ? pickNearestJumpHost(instance) : null);
+    }
 
-        GyroInstance jumpHost = null;
-        if (useJumpHost) {
-            jumpHost = pickNearestJumpHost(instance);
+    public List<String> createArgumentsList(GyroInstance instance, String... additionalArguments) throws Exception {
+        try (Timings.Span span = Timings.start("arguments", instance.getGyroInstanceId())) {
+            return buildArgumentsList(instance, additionalArguments);
         }
+    }
+
+    private List<String> buildArgumentsList(GyroInstance instance, String... additionalArguments) throws Exception {
+        SshTarget target = resolveTarget(instance);
+        String hostname = target.getHostname();
+        GyroInstance jumpHost = target.getJumpHost();
+        boolean useJumpHost = jumpHost != null;
+        boolean quiet = this.quiet;
 
         List<String> arguments = new ArrayList<>();
 
@@ -118,7 +186,26 @@ public class SshOptions {
             arguments.add(keyfile);
         }
 
-        if (useJumpHost) {
+        List<String> controlOptions = getControlOptions();
+
+        arguments.addAll(controlOptions);
+
+        List<String> connectOptions = getConnectOptions();
+
+        arguments.addAll(connectOptions);
+
+        if (useJumpHost && (proxyJump || !jumpHostChain.isEmpty())) {
+            List<String> hops = getJumpHostChainAddresses();
+
+            hops.add(getJumpHostAddress(jumpHost));
+
+            arguments.add("-J");
+            arguments.add(String.join(",", hops));
+
+            arguments.add("-o");
+            arguments.add("StrictHostKeychecking=no");
+
+        } else if (useJumpHost) {
             String KEY_FILE = "";
             String REMOTE_HOST = jumpHost.getGyroInstancePublicIpAddress();
             if (REMOTE_HOST == null) {
@@ -130,13 +217,14 @@ public class SshOptions {
             }
 
             if (keyfile != null) {
-                KEY_FILE = "-i " + keyfile;
+                KEY_FILE = "-i " + toProxyCommandArgument(keyfile);
             }
 
             arguments.add("-o");
-            arguments.add("ProxyCommand ssh {KEY_FILE} -W %h:%p {REMOTE_HOST}".
+            arguments.add("ProxyCommand ssh {KEY_FILE}{CONTROL_OPTIONS} -W %h:%p {REMOTE_HOST}".
                     replace("{REMOTE_HOST}", REMOTE_HOST).
-                    replace("{KEY_FILE}", KEY_FILE));
+                    replace("{KEY_FILE}", KEY_FILE).
+                    replace("{CONTROL_OPTIONS}", Stream.concat(controlOptions.stream(), connectOptions.stream()).map(o -> " " + toProxyCommandArgument(o)).collect(Collectors.joining())));
 
             arguments.add("-o");
             arguments.add("StrictHostKeychecking=no");
@@ -167,59 +255,285 @@ public class SshOptions {
         return arguments;
     }
 
+    // Arguments for running a command on the jump host itself, with the ssh
+    // agent forwarded so that it can connect on to the instances.
+    public List<String> createJumpHostArgumentsList(GyroInstance jumpHost, String... additionalArguments) throws Exception {
+        List<String> arguments = new ArrayList<>();
+
+        arguments.add("ssh");
+        arguments.add("-o");
+        arguments.add("ForwardAgent yes");
+
+        if (keyfile != null) {
+            arguments.add("-i");
+            arguments.add(keyfile);
+        }
+
+        arguments.addAll(getControlOptions());
+        arguments.addAll(getConnectOptions());
+
+        if (!jumpHostChain.isEmpty()) {
+            arguments.add("-J");
+            arguments.add(String.join(",", getJumpHostChainAddresses()));
+        }
+
+        arguments.add("-o");
+        arguments.add("StrictHostKeychecking=no");
+        arguments.add("-q");
+        arguments.add(getJumpHostAddress(jumpHost));
+
+        if (additionalArguments != null) {
+            Collections.addAll(arguments, additionalArguments);
+        }
+
+        return arguments;
+    }
+
+    // The first hop of the chain is reached over its public IP address, every
+    // later hop, including the jump host itself, over its private one.
+    public List<String> getJumpHostChainAddresses() {
+        List<String> addresses = new ArrayList<>();
+
+        for (GyroInstance hop : jumpHostChain) {
+            String address = addresses.isEmpty()
+                ? hop.getGyroInstancePublicIpAddress()
+                : hop.getGyroInstancePrivateIpAddress();
+
+            if (address == null) {
+                throw new GyroException(String.format(
+                    "Unable to determine the %s IP address of the jump host chain hop %s.",
+                    addresses.isEmpty() ? "public" : "private",
+                    hop.getGyroInstanceId()));
+            }
+
+            addresses.add(user != null ? String.format("%s@%s", user, address) : address);
+        }
+
+        return addresses;
+    }
+
+    public String getJumpHostAddress(GyroInstance jumpHost) {
+        String address = jumpHostChain.isEmpty()
+            ? jumpHost.getGyroInstancePublicIpAddress()
+            : jumpHost.getGyroInstancePrivateIpAddress();
+
+        if (address == null) {
+            throw new GyroException(String.format(
+                "Unable to determine the %s IP address of the jump host.",
+                jumpHostChain.isEmpty() ? "public" : "private"));
+        }
+
+        return user != null ? String.format("%s@%s", user, address) : address;
+    }
+
+    // ProxyCommand is percent expanded by the outer ssh, which only knows
+    // %h, %p, %r, %n and %k, and then run through the shell, so tokens meant
+    // for the inner ssh such as ControlPath's %C need escaping and quoting.
+    private static String toProxyCommandArgument(String argument) {
+        return "'" + argument.replace("%", "%%").replace("'", "'\\''") + "'";
+    }
+
+    public List<String> getControlOptions() throws IOException {
+        if (!multiplex) {
+            return Collections.emptyList();
+        }
+
+        return new ControlMaster(controlPersist != null ? controlPersist : ControlMaster.DEFAULT_PERSIST).getOptions();
+    }
+
+    public List<String> getConnectOptions() {
+        if (connectTimeout == null) {
+            return Collections.emptyList();
+        }
+
+        return Arrays.asList("-o", "ConnectTimeout=" + connectTimeout);
+    }
+
     public ProcessBuilder createProcessBuilder(GyroInstance instance, String... additionalArguments) throws Exception {
         return new ProcessBuilder(createArgumentsList(instance, additionalArguments));
     }
 
-    public static boolean hasService(InetAddress host, int port) {
-        Socket sock = new Socket();
+    public Route findRoute(GyroInstance instance) {
+        Route route = routes.get(routeKey(instance));
 
-        try {
-            sock.setSoTimeout(5000);
-            sock.connect(new InetSocketAddress(host, port), 1000);
-            if (sock.isConnected()) {
-                byte[] buffer = new byte[3];
-                if (sock.getInputStream().read(buffer) != 3) {
-                    return false;
-                }
+        if (route == null) {
+            probeRoutes(Collections.singletonList(instance));
+            route = routes.get(routeKey(instance));
+        }
+
+        return route;
+    }
+
+    public void probeRoutes(Collection<GyroInstance> instances) {
+        try (Timings.Span span = Timings.start("probe")) {
+            findRoutes(instances);
+        }
+    }
 
-                if (new String(buffer).equalsIgnoreCase("ssh")) {
-                    return true;
+    private void findRoutes(Collection<GyroInstance> instances) {
+        RouteCache cache = getRouteCache();
+        Map<GyroInstance, InetAddress> addresses = new LinkedHashMap<>();
+
+        for (GyroInstance instance : instances) {
+            String key = routeKey(instance);
+            String privateIp = instance.getGyroInstancePrivateIpAddress();
+
+            if (!routes.containsKey(key) && cache != null) {
+                Route cached = cache.get(key);
+
+                if (cached != null) {
+                    routes.put(key, cached);
                 }
             }
 
-        } catch (Exception ex) {
-            return false;
+            if (privateIp == null || routes.containsKey(key)) {
+                continue;
+            }
 
-        } finally {
             try {
-                sock.close();
-            } catch (IOException ioe) {
-                // Ignore
+                addresses.put(instance, InetAddress.getByName(privateIp));
+
+            } catch (UnknownHostException ex) {
+                LOGGER.debug("Unable to resolve {}", privateIp, ex);
             }
         }
 
-        return false;
+        Set<InetAddress> reachable = new SshProbe().probe(addresses.values());
+
+        for (GyroInstance instance : instances) {
+            String key = routeKey(instance);
+
+            if (routes.containsKey(key)) {
+                continue;
+            }
+
+            InetAddress address = addresses.get(instance);
+            Route route;
+
+            if (address != null && reachable.contains(address)) {
+                route = Route.PRIVATE;
+
+            } else if (instance.getGyroInstancePublicIpAddress() != null) {
+                route = Route.PUBLIC;
+
+            } else {
+                route = Route.JUMP_HOST;
+            }
+
+            routes.put(key, route);
+
+            if (cache != null) {
+                cache.put(key, route);
+            }
+        }
+
+        if (cache != null) {
+            cache.save();
+        }
     }
 
-    public GyroInstance pickInstance(List<GyroInstance> instances) throws IOException {
-        SSH_TABLE.writeHeader(GyroCore.ui());
+    // Remote commands may exit with 255 too, so the cached route is only
+    // dropped once the instance stops answering on it.
+    public void checkRoute(GyroInstance instance, int exitCode) {
+        if (exitCode != CONNECTION_FAILED_EXIT_CODE) {
+            return;
+        }
+
+        Route route = routes.get(routeKey(instance));
 
+        if (route != null && !isRouteValid(instance, route)) {
+            invalidateRoute(instance);
+        }
+    }
+
+    private boolean isRouteValid(GyroInstance instance, Route route) {
+        switch (route) {
+            case PRIVATE:
+                return hasService(instance.getGyroInstancePrivateIpAddress());
+
+            case PUBLIC:
+                return hasService(instance.getGyroInstancePublicIpAddress());
+
+            default:
+                // A jump host is only needed while the instance isn't reachable directly.
+                return !hasService(instance.getGyroInstancePrivateIpAddress());
+        }
+    }
+
+    private static boolean hasService(String address) {
+        if (address == null) {
+            return false;
+        }
+
+        try {
+            return hasService(InetAddress.getByName(address), 22);
+
+        } catch (UnknownHostException ex) {
+            LOGGER.debug("Unable to resolve {}", address, ex);
+            return false;
+        }
+    }
+
+    public void invalidateRoute(GyroInstance instance) {
+        String key = routeKey(instance);
+        RouteCache cache = getRouteCache();
+
+        routes.remove(key);
+
+        if (cache != null) {
+            cache.invalidate(key);
+            cache.save();
+        }
+    }
+
+    private synchronized RouteCache getRouteCache() {
+        if (noCache) {
+            return null;
+        }
+
+        if (routeCache == null) {
+            Path rootDir = GyroCore.getRootDirectory();
+
+            if (rootDir == null) {
+                return null;
+            }
+
+            routeCache = RouteCache.load(
+                rootDir.resolve(".gyro/ssh/routes.properties"),
+                cacheTtl != null ? cacheTtl : RouteCache.DEFAULT_TTL);
+        }
+
+        return routeCache;
+    }
+
+    private static String routeKey(GyroInstance instance) {
+        return instance.getGyroInstanceId() + "/" + instance.getGyroInstancePrivateIpAddress();
+    }
+
+    public static boolean hasService(InetAddress host, int port) {
+        try (Timings.Span span = Timings.start("probe", host.getHostAddress())) {
+            return new SshProbe(port, SshProbe.DEFAULT_CONNECT_TIMEOUT, SshProbe.DEFAULT_READ_TIMEOUT)
+                .probe(Collections.singleton(host))
+                .contains(host);
+        }
+    }
+
+    public GyroInstance pickInstance(List<GyroInstance> instances) throws IOException {
+        List<Object[]> rows = new ArrayList<>(instances.size());
         int index = 0;
 
         for (GyroInstance instance : instances) {
             ++ index;
 
-            SSH_TABLE.writeRow(
-                GyroCore.ui(),
+            rows.add(new Object[] {
                 index,
                 instance.getGyroInstanceLocation(),
                 reduceString(instance.getGyroInstanceName(), 50),
                 instance.getGyroInstanceLaunchDate(),
-                !ObjectUtils.isBlank(instance.getGyroInstanceHostname()) ? instance.getGyroInstanceHostname() : instance.getGyroInstancePrivateIpAddress());
+                !ObjectUtils.isBlank(instance.getGyroInstanceHostname()) ? instance.getGyroInstanceHostname() : instance.getGyroInstancePrivateIpAddress() });
         }
 
-        SSH_TABLE.writeFooter(GyroCore.ui());
+        SSH_TABLE.write(GyroCore.ui(), rows);
 
         int pick = ObjectUtils.to(int.class, GyroCore.ui().readText("\nMore than one instance matched your criteria, pick one to log into: "));
 
@@ -231,19 +545,51 @@ public class SshOptions {
     }
 
     public GyroInstance randomJumpHost() {
-        return getJumpHosts().stream().findFirst()
-            .orElseThrow(() -> new GyroException("Unable to find a jump host."));
+        if (getJumpHosts().isEmpty()) {
+            throw new GyroException("Unable to find a jump host.");
+        }
+
+        return getJumpHosts().get(ThreadLocalRandom.current().nextInt(getJumpHosts().size()));
     }
 
     public GyroInstance pickNearestJumpHost(GyroInstance gyroInstance) throws Exception {
-        return getJumpHosts()
-            .stream()
-            .filter(o -> o.getGyroInstanceLocation().equals(gyroInstance.getGyroInstanceLocation()))
-            .findFirst()
-            .orElse(randomJumpHost());
+        try (Timings.Span span = Timings.start("jump-host", gyroInstance.getGyroInstanceId())) {
+            return getJumpHostSelector().select(gyroInstance);
+        }
+    }
+
+    public void releaseJumpHost(GyroInstance gyroInstance) {
+        getJumpHostSelector().release(gyroInstance);
+    }
+
+    public ParallelExecutor.HostTask releaseJumpHostAfter(ParallelExecutor.HostTask task) {
+        return instance -> {
+            try {
+                return task.run(instance);
+
+            } finally {
+                releaseJumpHost(instance);
+            }
+        };
+    }
+
+    // Measures the jump hosts again with a selector of its own, leaving the
+    // latencies that every other instance's choice is based on untouched.
+    public List<GyroInstance> remeasureJumpHosts(GyroInstance gyroInstance) {
+        return new JumpHostSelector(getJumpHosts(), jumpHostChain.isEmpty()).rank(gyroInstance);
+    }
+
+    // Jump hosts behind a chain only have private addresses that can't be
+    // probed from here, so they're spread by usage alone.
+    private synchronized JumpHostSelector getJumpHostSelector() {
+        if (jumpHostSelector == null) {
+            jumpHostSelector = new JumpHostSelector(getJumpHosts(), jumpHostChain.isEmpty());
+        }
+
+        return jumpHostSelector;
     }
 
-    private static String reduceString(String message, int max) {
+    static String reduceString(String message, int max) {
         if (message.length() <= max + 3) {
             return message;
         }
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class SshProbe {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SshProbe.class);
+
+    private static final byte[] BANNER = "SSH-".getBytes(StandardCharsets.US_ASCII);
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 1000;
+    public static final int DEFAULT_READ_TIMEOUT = 5000;
+
+    private final int port;
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    public SshProbe() {
+        this(22, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    public SshProbe(int port, int connectTimeout, int readTimeout) {
+        this.port = port;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    public Set<InetAddress> probe(Collection<InetAddress> hosts) {
+        return measure(hosts).keySet();
+    }
+
+    // Returns the time it took each reachable host to send its ssh banner,
+    // in nanoseconds, which covers both the TCP connect and the server's
+    // side of the handshake.
+    public Map<InetAddress, Long> measure(Collection<InetAddress> hosts) {
+        Map<InetAddress, Long> reachable = new HashMap<>();
+
+        if (hosts.isEmpty()) {
+            return reachable;
+        }
+
+        Selector selector;
+
+        try {
+            selector = Selector.open();
+
+        } catch (IOException ex) {
+            LOGGER.debug("Unable to open selector for ssh probe", ex);
+            return reachable;
+        }
+
+        try {
+            long start = System.nanoTime();
+
+            for (InetAddress host : new HashSet<>(hosts)) {
+                register(selector, host);
+            }
+
+            long connectDeadline = start + TimeUnit.MILLISECONDS.toNanos(connectTimeout);
+            long readDeadline = connectDeadline + TimeUnit.MILLISECONDS.toNanos(readTimeout);
+
+            while (hasPending(selector)) {
+                long now = System.nanoTime();
+
+                if (now >= readDeadline) {
+                    break;
+                }
+
+                if (now >= connectDeadline) {
+                    for (SelectionKey key : selector.keys()) {
+                        if (((Attempt) key.attachment()).connectedAt == 0) {
+                            close(key);
+                        }
+                    }
+
+                    if (!hasPending(selector)) {
+                        break;
+                    }
+                }
+
+                long wait = (now < connectDeadline ? connectDeadline : readDeadline) - now;
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+
+                for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+                    SelectionKey key = i.next();
+                    i.remove();
+
+                    if (key.isValid() && handle(key)) {
+                        Attempt attempt = (Attempt) key.attachment();
+
+                        LOGGER.debug(
+                            "{} connected in {}ms, sent banner in {}ms",
+                            attempt.host,
+                            TimeUnit.NANOSECONDS.toMillis(attempt.connectedAt - start),
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+                        reachable.put(attempt.host, System.nanoTime() - start);
+                    }
+                }
+            }
+
+        } catch (IOException ex) {
+            LOGGER.debug("Ssh probe failed", ex);
+
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+
+            try {
+                selector.close();
+
+            } catch (IOException ex) {
+                // Ignore
+            }
+        }
+
+        return reachable;
+    }
+
+    private void register(Selector selector, InetAddress host) {
+        SocketChannel channel = null;
+
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+
+            Attempt attempt = new Attempt(host);
+
+            if (channel.connect(new InetSocketAddress(host, port))) {
+                attempt.connectedAt = System.nanoTime();
+                channel.register(selector, SelectionKey.OP_READ, attempt);
+
+            } else {
+                channel.register(selector, SelectionKey.OP_CONNECT, attempt);
+            }
+
+        } catch (IOException ex) {
+            LOGGER.debug("Unable to probe {}", host, ex);
+
+            if (channel != null) {
+                try {
+                    channel.close();
+
+                } catch (IOException ioe) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    // Returns true once the full banner prefix has been read.
+    private boolean handle(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Attempt attempt = (Attempt) key.attachment();
+
+        try {
+            if (key.isConnectable()) {
+                if (channel.finishConnect()) {
+                    attempt.connectedAt = System.nanoTime();
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+
+                return false;
+            }
+
+            if (key.isReadable()) {
+                if (channel.read(attempt.buffer) < 0) {
+                    close(key);
+                    return false;
+                }
+
+                if (!attempt.buffer.hasRemaining()) {
+                    close(key);
+                    return Arrays.equals(attempt.buffer.array(), BANNER);
+                }
+            }
+
+        } catch (IOException ex) {
+            close(key);
+        }
+
+        return false;
+    }
+
+    private static boolean hasPending(Selector selector) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+
+        try {
+            key.channel().close();
+
+        } catch (IOException ex) {
+            // Ignore
+        }
+    }
+
+    private static class Attempt {
+
+        private final InetAddress host;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BANNER.length);
+        private long connectedAt;
+
+        public Attempt(InetAddress host) {
+            this.host = host;
+        }
+    }
+
+}
@@ -16,96 +16,111 @@
 
 package gyro.plugin.ssh;
 
-import java.util.Iterator;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
-import com.psddev.dari.util.CompactMap;
 import gyro.core.GyroUI;
 
 public class Table {
 
-    private final Map<String, Integer> columns = new CompactMap<String, Integer>();
+    private final List<String> headers = new ArrayList<>();
 
-    public Table addColumn(String header, int width) {
-        columns.put(header, width);
+    // Rows are rendered into this buffer and written with a single call, so
+    // rendering is serialized per table.
+    private final StringBuilder line = new StringBuilder(256);
+
+    // Every column is sized to fit its header and cells.
+    public Table addColumn(String header) {
+        headers.add(header);
         return this;
     }
 
-    private void writeSeparator(GyroUI ui, char first, char fill, char between, char last) {
-        ui.write("%c%c", first, fill);
+    // Sizes the columns from the data in a single pass and then writes every
+    // row.
+    public synchronized void write(GyroUI ui, List<Object[]> rows) {
+        int[] sized = new int[headers.size()];
+        List<String[]> cellRows = new ArrayList<>(rows.size());
 
-        for (Iterator<Integer> i = columns.values().iterator(); i.hasNext();) {
-            int width = i.next();
+        for (int i = 0; i < sized.length; ++ i) {
+            sized[i] = headers.get(i).length();
+        }
 
-            for (; width > 0; -- width) {
-                ui.write("%c", fill);
-            }
+        for (Object[] row : rows) {
+            String[] cells = toStrings(row, sized.length);
 
-            if (i.hasNext()) {
-                ui.write("%c%c%c", fill, between, fill);
+            for (int i = 0; i < sized.length; ++ i) {
+                sized[i] = Math.max(sized[i], cells[i].length());
             }
+
+            cellRows.add(cells);
         }
 
-        ui.write("%c%c\n", fill, last);
-    }
+        writeSeparator(ui, sized);
+        writeCells(ui, sized, headers.toArray(new String[0]));
+        writeSeparator(ui, sized);
 
-    public void writeHeader(GyroUI ui) {
+        for (String[] cells : cellRows) {
+            writeCells(ui, sized, cells);
+        }
 
-        writeSeparator(ui, '+', '-', '+', '+');
-        ui.write("| ");
+        writeSeparator(ui, sized);
+    }
 
-        for (Iterator<Map.Entry<String, Integer>> i = columns.entrySet().iterator(); i.hasNext();) {
-            Map.Entry<String, Integer> entry = i.next();
-            String header = entry.getKey();
-            int remainder = entry.getValue() - header.length();
+    private String[] toStrings(Object[] cells, int length) {
+        String[] strings = new String[length];
+        int cellsLength = cells != null ? cells.length : 0;
 
-            if (remainder < 0) {
-                header = header.substring(header.length() + remainder);
-                remainder = 0;
-            }
+        for (int i = 0; i < length; ++ i) {
+            Object cell = i < cellsLength ? cells[i] : null;
+            strings[i] = cell != null ? cell.toString() : "";
+        }
 
-            ui.write(header);
+        return strings;
+    }
 
-            for (; remainder > 0; -- remainder) {
-                ui.write(" ");
-            }
+    private void writeSeparator(GyroUI ui, int[] sized) {
+        line.setLength(0);
+        line.append("+-");
+
+        for (int i = 0; i < sized.length; ++ i) {
+            pad(sized[i], '-');
 
-            if (i.hasNext()) {
-                ui.write(" | ");
+            if (i < sized.length - 1) {
+                line.append("-+-");
             }
         }
 
-        ui.write(" |\n");
-        writeSeparator(ui, '+', '-', '+', '+');
+        line.append("-+\n");
+        flush(ui);
     }
 
-    public void writeRow(GyroUI ui, Object... cells) {
-        ui.write("| ");
-
-        int cellsLength = cells != null ? cells.length : 0;
-        int index = 0;
-
-        for (Iterator<Integer> i = columns.values().iterator(); i.hasNext(); ++ index) {
-            int width = i.next();
-            Object cell = index < cellsLength ? cells[index] : null;
-            String cellString = cell != null ? cell.toString() : "";
-            int remainder = width - cellString.length();
+    private void writeCells(GyroUI ui, int[] sized, String[] cells) {
+        line.setLength(0);
+        line.append("| ");
 
-            ui.write(cellString);
+        for (int i = 0; i < sized.length; ++ i) {
+            String cell = cells[i];
 
-            for (; remainder > 0; -- remainder) {
-                ui.write(" ");
-            }
+            line.append(cell);
+            pad(sized[i] - cell.length(), ' ');
 
-            if (i.hasNext()) {
-                ui.write(" | ");
+            if (i < sized.length - 1) {
+                line.append(" | ");
             }
         }
 
-        ui.write(" |\n");
+        line.append(" |\n");
+        flush(ui);
     }
 
-    public void writeFooter(GyroUI ui) {
-        writeSeparator(ui, '+', '-', '+', '+');
+    private void pad(int count, char fill) {
+        for (; count > 0; -- count) {
+            line.append(fill);
+        }
     }
+
+    private void flush(GyroUI ui) {
+        ui.write("%s", line);
+    }
+
 }
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.psddev.dari.util.ObjectUtils;
+import gyro.core.GyroUI;
+
+// Times the phases of a command. Every phase is emitted as a JDK Flight
+// Recorder event when jdk.jfr is available, and is also kept in memory for
+// --timings once that's enabled.
+public final class Timings {
+
+    private static final boolean JFR_AVAILABLE = isJfrAvailable();
+
+    private static final long STARTED = System.nanoTime();
+
+    private static final ConcurrentLinkedQueue<Record> RECORDS = new ConcurrentLinkedQueue<>();
+
+    private static volatile boolean enabled;
+
+    private Timings() {
+    }
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static Span start(String phase) {
+        return start(phase, null);
+    }
+
+    public static Span start(String phase, String host) {
+        return new Span(phase, host);
+    }
+
+    public static void write(GyroUI ui) {
+        Map<String, long[]> phases = new LinkedHashMap<>();
+        Map<String, Map<String, Long>> hosts = new LinkedHashMap<>();
+        List<String> hostPhases = new ArrayList<>();
+
+        for (Record record : RECORDS) {
+            long[] totals = phases.computeIfAbsent(record.phase, p -> new long[3]);
+
+            totals[0] ++;
+            totals[1] += record.duration;
+            totals[2] = Math.max(totals[2], record.duration);
+
+            if (record.host != null) {
+                hosts.computeIfAbsent(record.host, h -> new LinkedHashMap<>()).merge(record.phase, record.duration, Long::sum);
+
+                if (!hostPhases.contains(record.phase)) {
+                    hostPhases.add(record.phase);
+                }
+            }
+        }
+
+        Table phaseTable = new Table()
+            .addColumn("Phase")
+            .addColumn("Count")
+            .addColumn("Total")
+            .addColumn("Max");
+
+        List<Object[]> phaseRows = new ArrayList<>();
+
+        for (Map.Entry<String, long[]> entry : phases.entrySet()) {
+            long[] totals = entry.getValue();
+
+            phaseRows.add(new Object[] { entry.getKey(), totals[0], format(totals[1]), format(totals[2]) });
+        }
+
+        ui.write("\n");
+        phaseTable.write(ui, phaseRows);
+
+        if (hosts.isEmpty()) {
+            return;
+        }
+
+        Table hostTable = new Table().addColumn("Host");
+        List<Object[]> hostRows = new ArrayList<>();
+
+        for (String phase : hostPhases) {
+            hostTable.addColumn(phase);
+        }
+
+        for (Map.Entry<String, Map<String, Long>> entry : hosts.entrySet()) {
+            Object[] row = new Object[hostPhases.size() + 1];
+
+            row[0] = entry.getKey();
+
+            for (int i = 0; i < hostPhases.size(); ++ i) {
+                Long duration = entry.getValue().get(hostPhases.get(i));
+
+                row[i + 1] = duration != null ? format(duration) : "-";
+            }
+
+            hostRows.add(row);
+        }
+
+        hostTable.write(ui, hostRows);
+    }
+
+    public static void export(Path file) throws IOException {
+        List<Object> records = new ArrayList<>();
+
+        for (Record record : RECORDS) {
+            Map<String, Object> map = new LinkedHashMap<>();
+
+            map.put("phase", record.phase);
+            map.put("host", record.host);
+            map.put("startMillis", TimeUnit.NANOSECONDS.toMicros(record.start - STARTED) / 1000.0);
+            map.put("durationMillis", TimeUnit.NANOSECONDS.toMicros(record.duration) / 1000.0);
+            records.add(map);
+        }
+
+        Map<String, Object> json = new LinkedHashMap<>();
+
+        json.put("timings", records);
+        Files.write(file, ObjectUtils.toJson(json).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String format(long nanos) {
+        return String.format("%.1fms", TimeUnit.NANOSECONDS.toMicros(nanos) / 1000.0);
+    }
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+
+    public static class Span implements AutoCloseable {
+
+        private final String phase;
+        private final String host;
+        private final long start = System.nanoTime();
+        private final Object event;
+
+        private Span(String phase, String host) {
+            this.phase = phase;
+            this.host = host;
+            this.event = JFR_AVAILABLE ? PhaseEvent.start() : null;
+        }
+
+        @Override
+        public void close() {
+            long duration = System.nanoTime() - start;
+
+            if (event != null) {
+                PhaseEvent.finish(event, phase, host);
+            }
+
+            if (enabled) {
+                RECORDS.add(new Record(phase, host, start, duration));
+            }
+        }
+    }
+
+    private static class Record {
+
+        private final String phase;
+        private final String host;
+        private final long start;
+        private final long duration;
+
+        public Record(String phase, String host, long start, long duration) {
+            this.phase = phase;
+            this.host = host;
+            this.start = start;
+            this.duration = duration;
+        }
+    }
+
+}
@@ -17,10 +17,30 @@
 package gyro.plugin.ssh;
 
 import java.awt.Desktop;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
+import com.jcraft.jsch.Session;
+import com.psddev.dari.util.ObjectUtils;
 import gyro.core.GyroCore;
 import gyro.core.GyroException;
 import gyro.core.GyroInstance;
@@ -44,14 +64,12 @@ import picocli.CommandLine.Option;
 )
 public class TunnelCommand extends AbstractInstanceCommand {
 
-    private static final Table TUNNEL_TABLE = new Table().
-            addColumn("#", 2).
-            addColumn("Instance ID", 20).
-            addColumn("Environment", 15).
-            addColumn("Location", 12).
-            addColumn("Layer", 12).
-            addColumn("State", 12).
-            addColumn("Hostname", 65);
+    private static final Table FORWARD_TABLE = new Table()
+        .addColumn("Local Port")
+        .addColumn("Instance ID")
+        .addColumn("Remote Host")
+        .addColumn("Remote Port")
+        .addColumn("Jump Host");
 
     @Option(names = "--localPort", description = "Local port to listen on.")
     public Integer localPort;
@@ -62,59 +80,488 @@ public class TunnelCommand extends AbstractInstanceCommand {
     @Option(names = "--nobrowser", description = "Don't open browser automatically.")
     public boolean noBrowser;
 
+    @Option(names = "--forward", description = "Forward [local-port:]instance:remote-port, where instance is an instance ID "
+        + "or name and may contain * wildcards, ignoring case. Can be repeated. A free local port is picked when none is given.")
+    public List<String> forwards;
+
+    @Option(names = "--socks", arity = "0..1", fallbackValue = "1080", paramLabel = "port",
+        description = "Open a SOCKS proxy on the given local port (1080 if omitted) through the nearest jump host instead of forwarding single ports.")
+    public Integer socksPort;
+
+    @Option(names = "--pac-file", description = "With --socks, write a proxy auto-config file that only sends the instances' "
+        + "private networks through the proxy.")
+    public String pacFile;
+
+    @Option(names = "--keep-alive", description = "Keep the tunnel up: send ssh keepalives and reconnect with backoff, "
+        + "trying the next best jump host, when it drops.")
+    public boolean keepAlive;
+
+    @Option(names = "--keep-alive-interval", description = "Seconds of silence before a keepalive is sent. The tunnel is "
+        + "reconnected after 3 go unanswered. Defaults to 15.")
+    public int keepAliveInterval = 15;
+
+    @Option(names = "--stats-interval", description = "Seconds between traffic reports for tunnels using the java engine. "
+        + "Defaults to 10, 0 disables them.")
+    public int statsInterval = 10;
+
     @ArgGroup(exclusive = false)
     public SshOptions sshOptions;
 
     @Override
     public void doExecute(List<GyroInstance> instances) throws Exception {
-        GyroInstance instance = null;
-
         if (sshOptions == null) {
             sshOptions = new SshOptions();
         }
         sshOptions.useJumpHost = true;
-        sshOptions.setJumpHosts(current.getSettings(JumpHostSettings.class).getJumpHosts());
+        sshOptions.setJumpHosts(getJumpHosts());
+        sshOptions.setJumpHostChain(getJumpHostChain());
         sshOptions.setInstances(instances);
 
-        if (instances.size() > 1) {
-            instance = sshOptions.pickInstance(instances);
-        } else if (instances.size() != 0) {
-            instance = instances.get(0);
+        if (socksPort != null) {
+            socks(instances);
+            return;
+        }
+
+        List<TunnelForward> tunnelForwards = new ArrayList<>();
+
+        if (forwards != null && !forwards.isEmpty()) {
+            for (String spec : forwards) {
+                TunnelForward forward = TunnelForward.parse(spec);
+                List<GyroInstance> matches = instances.stream()
+                    .filter(forward::matches)
+                    .collect(Collectors.toList());
+
+                if (matches.isEmpty()) {
+                    throw new GyroException(String.format("No instance matches @|bold %s|@.", forward.getSelector()));
+                }
+
+                forward.setInstance(matches.size() > 1 ? sshOptions.pickInstance(matches) : matches.get(0));
+                tunnelForwards.add(forward);
+            }
+
+        } else {
+            GyroInstance instance = instances.size() > 1 ? sshOptions.pickInstance(instances) : instances.get(0);
+
+            tunnelForwards.add(new TunnelForward(
+                localPort != null ? localPort : 4000,
+                instance,
+                remotePort != null ? remotePort : 8080));
+        }
+
+        // Forwards through the same jump host share one connection, so only
+        // pick one jump host per location.
+        Map<String, GyroInstance> jumpHostsByLocation = new HashMap<>();
+        Map<GyroInstance, List<TunnelForward>> groups = new LinkedHashMap<>();
+
+        for (TunnelForward forward : tunnelForwards) {
+            String location = forward.getInstance().getGyroInstanceLocation();
+            GyroInstance jumpHost = jumpHostsByLocation.get(location);
+
+            if (jumpHost == null) {
+                jumpHost = sshOptions.pickNearestJumpHost(forward.getInstance());
+                jumpHostsByLocation.put(location, jumpHost);
+            }
+
+            forward.allocateLocalPort();
+            forward.setJumpHost(jumpHost);
+            groups.computeIfAbsent(jumpHost, j -> new ArrayList<>()).add(forward);
+        }
+
+        if (keepAlive) {
+            supervise(groups, tunnelForwards);
+            return;
+        }
+
+        if (sshOptions.useJavaEngine()) {
+            try (JavaSshEngine engine = new JavaSshEngine(sshOptions);
+                PortForwarder forwarder = new PortForwarder(new ForwardMetrics())) {
+
+                List<Session> sessions = new ArrayList<>();
+
+                for (TunnelForward forward : tunnelForwards) {
+                    Session session = engine.getJumpHostSession(forward.getJumpHost());
+
+                    forwarder.addForward(
+                        session,
+                        forward.getLocalPort(),
+                        forward.getInstance().getGyroInstancePrivateIpAddress(),
+                        forward.getRemotePort());
+
+                    sessions.add(session);
+                }
+
+                forwarder.start();
+                announce(tunnelForwards);
+
+                long interval = TimeUnit.SECONDS.toMillis(statsInterval > 0 ? statsInterval : 1);
+                long nextStats = System.currentTimeMillis() + interval;
+
+                while (sessions.stream().allMatch(Session::isConnected)) {
+                    Thread.sleep(Math.min(1000, interval));
+
+                    if (statsInterval > 0 && System.currentTimeMillis() >= nextStats) {
+                        writeStats(forwarder.getMetrics());
+                        nextStats += interval;
+                    }
+                }
+            }
+
+            return;
         }
 
-        GyroInstance jumpHost = sshOptions.pickNearestJumpHost(instance);
-        ProcessBuilder processBuilder = tunnel(instance, jumpHost);
+        List<Process> processes = new ArrayList<>();
 
-        GyroCore.ui().write("Tunneling local port %s to %s on %s\n\n", localPort, remotePort, instance.getGyroInstanceId());
-        GyroCore.ui().write("http://localhost:%s\n", localPort);
+        for (Map.Entry<GyroInstance, List<TunnelForward>> entry : groups.entrySet()) {
+            processes.add(launch(entry.getKey(), tunnel(entry.getKey(), entry.getValue()).inheritIO()));
+        }
+
+        announce(tunnelForwards);
 
-        Process process = processBuilder.inheritIO().start();
+        for (Process process : processes) {
+            process.waitFor();
+        }
+    }
+
+    private void supervise(Map<GyroInstance, List<TunnelForward>> groups, List<TunnelForward> tunnelForwards) throws Exception {
+        JavaSshEngine engine = sshOptions.useJavaEngine() ? new JavaSshEngine(sshOptions) : null;
+
+        try (PortForwarder forwarder = engine != null ? new PortForwarder(new ForwardMetrics()) : null) {
+            List<Thread> threads = new ArrayList<>();
+
+            for (Map.Entry<GyroInstance, List<TunnelForward>> entry : groups.entrySet()) {
+                List<TunnelForward> group = entry.getValue();
+
+                TunnelSupervisor supervisor = new TunnelSupervisor(
+                    sshOptions,
+                    group.get(0).getInstance(),
+                    TimeUnit.SECONDS.toMillis(keepAliveInterval),
+                    engine != null
+                        ? new SessionLink(engine, forwarder, group, keepAliveInterval)
+                        : new ProcessLink(
+                            j -> tunnel(j, group),
+                            group.stream().map(TunnelForward::getLocalPort).collect(Collectors.toList())));
+
+                Thread thread = new Thread(() -> {
+                    try {
+                        supervisor.supervise(entry.getKey());
+
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, "gyro-ssh-tunnel-" + entry.getKey().getGyroInstanceId());
+
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+
+            if (forwarder != null) {
+                forwarder.start();
+            }
+
+            announce(tunnelForwards);
+
+            long interval = TimeUnit.SECONDS.toMillis(statsInterval > 0 ? statsInterval : 1);
+
+            while (threads.stream().anyMatch(Thread::isAlive)) {
+                threads.get(0).join(interval);
+
+                if (forwarder != null && statsInterval > 0) {
+                    writeStats(forwarder.getMetrics());
+                }
+            }
+
+        } finally {
+            if (engine != null) {
+                engine.close();
+            }
+        }
+    }
+
+    private void socks(List<GyroInstance> instances) throws Exception {
+        if (sshOptions.useJavaEngine()) {
+            throw new GyroException("The java engine doesn't support --socks.");
+        }
+
+        // The jump host is picked for the location most of the instances
+        // are in.
+        GyroInstance representative = instances.stream()
+            .collect(Collectors.groupingBy(
+                i -> String.valueOf(i.getGyroInstanceLocation()),
+                LinkedHashMap::new,
+                Collectors.toList()))
+            .values()
+            .stream()
+            .max(Comparator.comparingInt(List::size))
+            .map(l -> l.get(0))
+            .orElseThrow(() -> new GyroException("No instances found."));
+
+        GyroInstance jumpHost = sshOptions.pickNearestJumpHost(representative);
+        List<String> forwardArguments = Arrays.asList("-D", "localhost:" + socksPort);
+
+        if (pacFile != null) {
+            Files.write(Paths.get(pacFile), createPac(instances).getBytes(StandardCharsets.UTF_8));
+            GyroCore.ui().write("Wrote proxy auto-config to @|bold %s|@\n", pacFile);
+        }
+
+        GyroCore.ui().write(
+            "SOCKS proxy on @|bold localhost:%d|@ through @|yellow %s|@\n",
+            socksPort,
+            jumpHost.getGyroInstanceId());
+
+        if (keepAlive) {
+            new TunnelSupervisor(
+                sshOptions,
+                representative,
+                TimeUnit.SECONDS.toMillis(keepAliveInterval),
+                new ProcessLink(j -> tunnel(j, forwardArguments), Collections.singletonList(socksPort))).supervise(jumpHost);
+
+        } else {
+            launch(jumpHost, tunnel(jumpHost, forwardArguments).inheritIO()).waitFor();
+        }
+    }
+
+    // Sends the /24 of every discovered private IPv4 address, and the
+    // instances' hostnames, through the proxy and everything else direct.
+    private String createPac(List<GyroInstance> instances) {
+        Set<String> networks = new TreeSet<>();
+        Set<String> hostnames = new TreeSet<>();
+
+        for (GyroInstance instance : instances) {
+            String privateIp = instance.getGyroInstancePrivateIpAddress();
+
+            if (privateIp != null && privateIp.matches("\\d+\\.\\d+\\.\\d+\\.\\d+")) {
+                networks.add(privateIp.substring(0, privateIp.lastIndexOf('.')) + ".0");
+            }
+
+            if (!ObjectUtils.isBlank(instance.getGyroInstanceHostname())) {
+                hostnames.add(instance.getGyroInstanceHostname());
+            }
+        }
+
+        String proxy = String.format("SOCKS5 127.0.0.1:%d; SOCKS 127.0.0.1:%d", socksPort, socksPort);
+        StringBuilder pac = new StringBuilder();
+
+        pac.append("function FindProxyForURL(url, host) {\n");
+
+        for (String hostname : hostnames) {
+            pac.append(String.format("    if (host == \"%s\") return \"%s\";\n", hostname, proxy));
+        }
+
+        pac.append("    if (!isResolvable(host)) return \"DIRECT\";\n");
+        pac.append("    var ip = dnsResolve(host);\n");
+
+        for (String network : networks) {
+            pac.append(String.format(
+                "    if (isInNet(ip, \"%s\", \"255.255.255.0\")) return \"%s\";\n",
+                network,
+                proxy));
+        }
+
+        pac.append("    return \"DIRECT\";\n");
+        pac.append("}\n");
+
+        return pac.toString();
+    }
+
+    private void writeStats(ForwardMetrics metrics) {
+        double[] rates = metrics.sampleRates();
+
+        GyroCore.ui().write(
+            "@|bold %d|@ open (%d total, %d failed), @|green up|@ %s/s, @|green down|@ %s/s, setup avg %.1fms max %.1fms\n",
+            metrics.getActiveConnections(),
+            metrics.getTotalConnections(),
+            metrics.getFailedConnections(),
+            formatBytes(rates[0]),
+            formatBytes(rates[1]),
+            metrics.getAverageSetupMillis(),
+            metrics.getMaxSetupMillis());
+    }
+
+    private static String formatBytes(double bytes) {
+        if (bytes >= 1024 * 1024) {
+            return String.format("%.1fMiB", bytes / (1024 * 1024));
+
+        } else if (bytes >= 1024) {
+            return String.format("%.1fKiB", bytes / 1024);
+
+        } else {
+            return String.format("%.0fB", bytes);
+        }
+    }
+
+    private static Process launch(GyroInstance jumpHost, ProcessBuilder builder) throws IOException {
+        try (Timings.Span span = Timings.start("launch", jumpHost.getGyroInstanceId())) {
+            return builder.start();
+        }
+    }
+
+    private void announce(List<TunnelForward> tunnelForwards) throws Exception {
+        if (tunnelForwards.size() > 1) {
+            List<Object[]> rows = new ArrayList<>(tunnelForwards.size());
+
+            for (TunnelForward forward : tunnelForwards) {
+                rows.add(new Object[] {
+                    forward.getLocalPort(),
+                    forward.getInstance().getGyroInstanceId(),
+                    forward.getInstance().getGyroInstancePrivateIpAddress(),
+                    forward.getRemotePort(),
+                    forward.getJumpHost().getGyroInstanceId() });
+            }
+
+            FORWARD_TABLE.write(GyroCore.ui(), rows);
+            return;
+        }
+
+        TunnelForward forward = tunnelForwards.get(0);
+
+        GyroCore.ui().write(
+            "Tunneling local port %s to %s on %s\n\n",
+            forward.getLocalPort(),
+            forward.getRemotePort(),
+            forward.getInstance().getGyroInstanceId());
+
+        GyroCore.ui().write("http://localhost:%s\n", forward.getLocalPort());
 
         if (!noBrowser) {
-            Desktop.getDesktop().browse(new URI("http://localhost:" + localPort));
+            Desktop.getDesktop().browse(new URI("http://localhost:" + forward.getLocalPort()));
+        }
+    }
+
+    private class ProcessLink implements TunnelSupervisor.Link {
+
+        private final TunnelBuilder builder;
+        private final List<Integer> localPorts;
+        private Process process;
+
+        public ProcessLink(TunnelBuilder builder, List<Integer> localPorts) {
+            this.builder = builder;
+            this.localPorts = localPorts;
+        }
+
+        @Override
+        public void start(GyroInstance jumpHost) throws Exception {
+            process = launch(jumpHost, builder.build(jumpHost).inheritIO());
+        }
+
+        @Override
+        public boolean isAlive() {
+            return process != null && process.isAlive();
+        }
+
+        // ssh binds the local ports only once it's connected. Only checked
+        // while starting, after that ServerAliveInterval notices a dead
+        // connection and ssh exits.
+        @Override
+        public boolean isReady() {
+            for (int port : localPorts) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1000);
+
+                } catch (IOException ex) {
+                    return false;
+                }
+            }
+
+            return true;
         }
 
-        process.waitFor();
+        @Override
+        public void stop() {
+            if (process != null) {
+                process.destroy();
+            }
+        }
     }
 
-    private ProcessBuilder tunnel(GyroInstance instance, GyroInstance jumpHost) {
-        if (jumpHost == null) {
-            throw new GyroException("No jump host found.");
+    @FunctionalInterface
+    private interface TunnelBuilder {
+
+        ProcessBuilder build(GyroInstance jumpHost) throws IOException;
+
+    }
+
+    private static class SessionLink implements TunnelSupervisor.Link {
+
+        private final JavaSshEngine engine;
+        private final PortForwarder forwarder;
+        private final List<TunnelForward> group;
+        private final int keepAliveInterval;
+        private Session session;
+        private boolean bound;
+
+        public SessionLink(JavaSshEngine engine, PortForwarder forwarder, List<TunnelForward> group, int keepAliveInterval) {
+            this.engine = engine;
+            this.forwarder = forwarder;
+            this.group = group;
+            this.keepAliveInterval = keepAliveInterval;
         }
 
-        List<String> arguments = new ArrayList<>();
+        // JSch sends a keepalive whenever the session has been quiet for the
+        // interval and disconnects after 3 go unanswered, which isAlive()
+        // then reports.
+        @Override
+        public void start(GyroInstance jumpHost) throws Exception {
+            Session previous = session;
+
+            session = engine.getJumpHostSession(jumpHost);
+            session.setServerAliveInterval((int) TimeUnit.SECONDS.toMillis(keepAliveInterval));
+            session.setServerAliveCountMax(3);
+
+            if (bound) {
+                forwarder.replaceSession(previous, session);
+                return;
+            }
 
-        String remoteHost = instance.getGyroInstancePrivateIpAddress();
-        String jumpHostIp = jumpHost.getGyroInstancePublicIpAddress();
+            for (TunnelForward forward : group) {
+                forwarder.addForward(
+                    session,
+                    forward.getLocalPort(),
+                    forward.getInstance().getGyroInstancePrivateIpAddress(),
+                    forward.getRemotePort());
+            }
 
-        if (localPort == null) {
-            localPort = 4000;
+            bound = true;
         }
 
-        if (remotePort == null) {
-            remotePort = 8080;
+        @Override
+        public boolean isAlive() {
+            return session != null && session.isConnected();
         }
 
+        // The local listeners belong to the forwarder and stay bound, so
+        // the session being up is all there is to check.
+        @Override
+        public boolean isReady() {
+            return isAlive();
+        }
+
+        @Override
+        public void stop() {
+            if (session != null) {
+                session.disconnect();
+            }
+        }
+    }
+
+    private ProcessBuilder tunnel(GyroInstance jumpHost, List<TunnelForward> tunnelForwards) throws IOException {
+        List<String> forwardArguments = new ArrayList<>();
+
+        for (TunnelForward forward : tunnelForwards) {
+            forwardArguments.add("-L");
+            forwardArguments.add(forward.toArgument());
+        }
+
+        return tunnel(jumpHost, forwardArguments);
+    }
+
+    private ProcessBuilder tunnel(GyroInstance jumpHost, Collection<String> forwardArguments) throws IOException {
+        if (jumpHost == null) {
+            throw new GyroException("No jump host found.");
+        }
+
+        List<String> arguments = new ArrayList<>();
+
         arguments.add("ssh");
         arguments.add("-nNT");
 
@@ -123,8 +570,15 @@ public class TunnelCommand extends AbstractInstanceCommand {
             arguments.add(sshOptions.keyfile);
         }
 
-        arguments.add("-L");
-        arguments.add(localPort + ":" + remoteHost + ":" + remotePort);
+        arguments.addAll(sshOptions.getControlOptions());
+        arguments.addAll(sshOptions.getConnectOptions());
+
+        if (!sshOptions.getJumpHostChain().isEmpty()) {
+            arguments.add("-J");
+            arguments.add(String.join(",", sshOptions.getJumpHostChainAddresses()));
+        }
+
+        arguments.addAll(forwardArguments);
 
         arguments.add("-o");
         arguments.add("StrictHostKeychecking=no");
@@ -132,10 +586,15 @@ public class TunnelCommand extends AbstractInstanceCommand {
         arguments.add("-o");
         arguments.add("ExitOnForwardFailure=yes");
 
-        if (sshOptions != null && sshOptions.user != null) {
-            jumpHostIp = String.format("%s@%s", sshOptions.user, jumpHost.getGyroInstancePublicIpAddress());
+        if (keepAlive) {
+            arguments.add("-o");
+            arguments.add("ServerAliveInterval=" + keepAliveInterval);
+
+            arguments.add("-o");
+            arguments.add("ServerAliveCountMax=3");
         }
-        arguments.add(jumpHostIp);
+
+        arguments.add(sshOptions.getJumpHostAddress(jumpHost));
 
         return new ProcessBuilder(arguments);
     }
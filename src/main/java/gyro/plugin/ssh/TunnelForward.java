@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import gyro.core.GyroException;
+import gyro.core.GyroInstance;
+
+public class TunnelForward {
+
+    private Integer localPort;
+    private final String selector;
+    private final Glob glob;
+    private final int remotePort;
+    private GyroInstance instance;
+    private GyroInstance jumpHost;
+
+    public TunnelForward(Integer localPort, String selector, int remotePort) {
+        this.localPort = localPort;
+        this.selector = selector;
+        this.glob = new Glob(selector);
+        this.remotePort = remotePort;
+    }
+
+    public TunnelForward(Integer localPort, GyroInstance instance, int remotePort) {
+        this(localPort, instance.getGyroInstanceId(), remotePort);
+        this.instance = instance;
+    }
+
+    // Accepts local:instance-selector:remote or instance-selector:remote.
+    public static TunnelForward parse(String spec) {
+        String[] parts = spec.split(":", -1);
+
+        try {
+            if (parts.length == 3) {
+                return new TunnelForward(
+                    parts[0].isEmpty() ? null : Integer.parseInt(parts[0]),
+                    parts[1],
+                    Integer.parseInt(parts[2]));
+
+            } else if (parts.length == 2) {
+                return new TunnelForward(null, parts[0], Integer.parseInt(parts[1]));
+            }
+
+        } catch (NumberFormatException ex) {
+            // Reported below.
+        }
+
+        throw new GyroException(String.format(
+            "Invalid forward @|bold %s|@, must be [local-port:]instance:remote-port.",
+            spec));
+    }
+
+    public boolean matches(GyroInstance instance) {
+        return glob.matches(instance.getGyroInstanceId()) || glob.matches(instance.getGyroInstanceName());
+    }
+
+    public Integer getLocalPort() {
+        return localPort;
+    }
+
+    public String getSelector() {
+        return selector;
+    }
+
+    public int getRemotePort() {
+        return remotePort;
+    }
+
+    public GyroInstance getInstance() {
+        return instance;
+    }
+
+    public void setInstance(GyroInstance instance) {
+        this.instance = instance;
+    }
+
+    public GyroInstance getJumpHost() {
+        return jumpHost;
+    }
+
+    public void setJumpHost(GyroInstance jumpHost) {
+        this.jumpHost = jumpHost;
+    }
+
+    public void allocateLocalPort() throws IOException {
+        if (localPort != null) {
+            return;
+        }
+
+        try (ServerSocket socket = new ServerSocket(0)) {
+            localPort = socket.getLocalPort();
+        }
+    }
+
+    public String toArgument() {
+        return localPort + ":" + instance.getGyroInstancePrivateIpAddress() + ":" + remotePort;
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import gyro.core.GyroCore;
+import gyro.core.GyroInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class TunnelSupervisor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TunnelSupervisor.class);
+
+    private static final long INITIAL_BACKOFF = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_BACKOFF = TimeUnit.SECONDS.toMillis(60);
+
+    // A link that stays up this long is considered stable again and resets
+    // the backoff.
+    private static final long STABLE_AFTER = TimeUnit.SECONDS.toMillis(60);
+
+    private static final int READY_CHECKS = 30;
+
+    private final SshOptions sshOptions;
+    private final GyroInstance instance;
+    private final long checkInterval;
+    private final Link link;
+
+    private int downtimes;
+    private long totalDowntime;
+
+    public TunnelSupervisor(
+        SshOptions sshOptions,
+        GyroInstance instance,
+        long checkInterval,
+        Link link) {
+
+        this.sshOptions = sshOptions;
+        this.instance = instance;
+        this.checkInterval = checkInterval;
+        this.link = link;
+    }
+
+    public void supervise(GyroInstance jumpHost) throws InterruptedException {
+        int attempt = 0;
+        Long downSince = null;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            long started = System.currentTimeMillis();
+            boolean connected = false;
+
+            try {
+                link.start(jumpHost);
+                connected = awaitReady();
+
+                // A link that never became ready is retried without being
+                // left running.
+                if (connected) {
+                    if (downSince != null) {
+                        long downtime = System.currentTimeMillis() - downSince;
+
+                        downtimes++;
+                        totalDowntime += downtime;
+
+                        GyroCore.ui().write(
+                            "@|green Tunnel restored|@ through @|yellow %s|@ after %.1fs down (%d outage(s), %.1fs total)\n",
+                            jumpHost.getGyroInstanceId(),
+                            downtime / 1000.0,
+                            downtimes,
+                            totalDowntime / 1000.0);
+
+                        downSince = null;
+                    }
+
+                    monitor();
+                }
+
+            } catch (Exception ex) {
+                LOGGER.debug("Tunnel through {} failed", jumpHost.getGyroInstanceId(), ex);
+
+            } finally {
+                link.stop();
+            }
+
+            if (downSince == null) {
+                downSince = System.currentTimeMillis();
+
+                GyroCore.ui().write(
+                    connected
+                        ? "@|red Tunnel through %s dropped|@, reconnecting...\n"
+                        : "@|red Tunnel through %s failed to connect|@, retrying...\n",
+                    jumpHost.getGyroInstanceId());
+            }
+
+            if (System.currentTimeMillis() - started >= STABLE_AFTER) {
+                attempt = 0;
+            }
+
+            Thread.sleep(backoff(attempt++));
+            jumpHost = nextJumpHost(jumpHost);
+        }
+    }
+
+    // Exponential backoff with jitter, between half and all of the
+    // exponential delay.
+    private long backoff(int attempt) {
+        long delay = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << Math.min(attempt, 16));
+
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    // Only this tunnel's choice is remeasured, other tunnels keep theirs.
+    private GyroInstance nextJumpHost(GyroInstance current) {
+        List<GyroInstance> ranked = sshOptions.remeasureJumpHosts(instance);
+
+        if (ranked.isEmpty()) {
+            return current;
+        }
+
+        int index = ranked.indexOf(current);
+
+        return ranked.get((index + 1) % ranked.size());
+    }
+
+    private boolean awaitReady() throws InterruptedException {
+        for (int i = 0; i < READY_CHECKS && link.isAlive(); i++) {
+            if (link.isReady()) {
+                return true;
+            }
+
+            Thread.sleep(Math.max(100, checkInterval / 10));
+        }
+
+        return false;
+    }
+
+    // Links detect a dead connection with ssh keepalives, which also catch
+    // a half-open one that still accepts local connections, and then stop
+    // being alive.
+    private void monitor() throws InterruptedException {
+        while (link.isAlive()) {
+            Thread.sleep(Math.min(checkInterval, 1000));
+        }
+    }
+
+    public interface Link {
+
+        void start(GyroInstance jumpHost) throws Exception;
+
+        boolean isAlive();
+
+        boolean isReady();
+
+        void stop();
+
+    }
+
+}
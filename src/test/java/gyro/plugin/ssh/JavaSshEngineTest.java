@@ -0,0 +1,197 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyPair;
+import gyro.core.GyroInstance;
+import org.apache.sshd.common.config.keys.PublicKeyEntry;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.pubkey.AcceptAllPublickeyAuthenticator;
+import org.apache.sshd.server.forward.AcceptAllForwardingFilter;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.shell.ProcessShellFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Runs the java engine against an embedded sshd on the loopback address.
+// Every hop of a jump host route is the same server, reached over
+// direct-tcpip channels opened on the previous hop.
+public class JavaSshEngineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String userHome;
+    private SshServer server;
+    private SshOptions options;
+
+    @Before
+    public void setUp() throws Exception {
+        server = SshServer.setUpDefaultServer();
+        server.setHost("127.0.0.1");
+        server.setPort(0);
+        server.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+        server.setPublickeyAuthenticator(AcceptAllPublickeyAuthenticator.INSTANCE);
+        server.setForwardingFilter(AcceptAllForwardingFilter.INSTANCE);
+        server.setCommandFactory((channel, command) -> new ProcessShellFactory(command, "/bin/sh", "-c", command).createShell(channel));
+        server.start();
+
+        Path home = folder.newFolder("home").toPath();
+        Path keyFile = home.resolve("id_rsa");
+        KeyPair key = KeyPair.genKeyPair(new JSch(), KeyPair.RSA, 2048);
+
+        key.writePrivateKey(keyFile.toString());
+        key.dispose();
+        Files.createDirectories(home.resolve(".ssh"));
+
+        userHome = System.getProperty("user.home");
+        System.setProperty("user.home", home.toString());
+
+        options = new SshOptions();
+        options.keyfile = keyFile.toString();
+        options.noCache = true;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        System.setProperty("user.home", userHome);
+        server.stop(true);
+    }
+
+    @Test
+    public void executeReturnsOutputAndExitStatus() throws Exception {
+        trustServer();
+
+        RecordingMultiplexer output = new RecordingMultiplexer();
+
+        try (JavaSshEngine engine = createEngine()) {
+            assertEquals(3, engine.execute(instance("i-1"), "echo out; echo err >&2; exit 3", output));
+            assertEquals(0, engine.execute(instance("i-1"), "true", output));
+        }
+
+        assertEquals(Collections.singletonList("out"), output.getLines(false));
+        assertEquals(Collections.singletonList("err"), output.getLines(true));
+    }
+
+    @Test
+    public void executeTimesOut() throws Exception {
+        trustServer();
+
+        long start = System.currentTimeMillis();
+
+        try (JavaSshEngine engine = createEngine()) {
+            engine.execute(instance("i-1"), "sleep 30", new RecordingMultiplexer(), 500);
+            fail("Expected a timeout.");
+
+        } catch (TimeoutException ex) {
+            assertTrue(System.currentTimeMillis() - start < 10000);
+        }
+    }
+
+    @Test(expected = JSchException.class)
+    public void directSessionRejectsUnknownHostKey() throws Exception {
+        try (JavaSshEngine engine = createEngine()) {
+            engine.execute(instance("i-1"), "true", new RecordingMultiplexer());
+        }
+    }
+
+    @Test
+    public void executeThroughJumpHost() throws Exception {
+        RecordingMultiplexer output = new RecordingMultiplexer();
+
+        options.useJumpHost = true;
+        options.setJumpHosts(Collections.singletonList(instance("jump")));
+
+        try (JavaSshEngine engine = createEngine()) {
+            assertEquals(0, engine.execute(instance("i-1"), "echo jumped", output));
+        }
+
+        assertEquals(Collections.singletonList("jumped"), output.getLines(false));
+    }
+
+    @Test
+    public void executeThroughJumpHostChain() throws Exception {
+        RecordingMultiplexer output = new RecordingMultiplexer();
+
+        options.useJumpHost = true;
+        options.setJumpHosts(Collections.singletonList(instance("jump")));
+        options.setJumpHostChain(Collections.singletonList(instance("bastion")));
+
+        try (JavaSshEngine engine = createEngine()) {
+            assertEquals(7, engine.execute(instance("i-1"), "echo chained; exit 7", output));
+            assertEquals(0, engine.execute(instance("i-2"), "echo again", output));
+        }
+
+        assertEquals(Arrays.asList("chained", "again"), output.getLines(false));
+    }
+
+    private JavaSshEngine createEngine() throws JSchException {
+        return new JavaSshEngine(options, server.getPort(), 5000);
+    }
+
+    private void trustServer() throws Exception {
+        PublicKey key = server.getKeyPairProvider().loadKeys(null).iterator().next().getPublic();
+        Path knownHosts = folder.getRoot().toPath().resolve("home/.ssh/known_hosts");
+
+        Files.write(
+            knownHosts,
+            String.format("[127.0.0.1]:%d %s\n", server.getPort(), PublicKeyEntry.toString(key)).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static GyroInstance instance(String id) {
+        return new SimpleInstance(id, id, "local", "running", null, "127.0.0.1", "127.0.0.1", "localhost");
+    }
+
+    private static class RecordingMultiplexer extends OutputMultiplexer {
+
+        private final List<String> output = new ArrayList<>();
+        private final List<String> error = new ArrayList<>();
+
+        public RecordingMultiplexer() {
+            super(null, true);
+        }
+
+        @Override
+        protected synchronized void writeLine(String label, byte[] line, boolean error) {
+            (error ? this.error : output).add(new String(line, StandardCharsets.UTF_8));
+        }
+
+        public synchronized List<String> getLines(boolean error) {
+            return new ArrayList<>(error ? this.error : output);
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2019, Perfect Sense, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package gyro.plugin.ssh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.KeyPair;
+import com.jcraft.jsch.Session;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.pubkey.AcceptAllPublickeyAuthenticator;
+import org.apache.sshd.server.forward.AcceptAllForwardingFilter;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+// Forwards a local port through an embedded sshd to an echo server.
+public class PortForwarderTest {
+
+    private static final int CONNECTIONS = 32;
+    private static final int PAYLOAD_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SshServer server;
+    private ServerSocket echo;
+    private ExecutorService executor;
+    private Session session;
+    private PortForwarder forwarder;
+
+    @Before
+    public void setUp() throws Exception {
+        server = SshServer.setUpDefaultServer();
+        server.setHost("127.0.0.1");
+        server.setPort(0);
+        server.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+        server.setPublickeyAuthenticator(AcceptAllPublickeyAuthenticator.INSTANCE);
+        server.setForwardingFilter(AcceptAllForwardingFilter.INSTANCE);
+        server.start();
+
+        executor = Executors.newCachedThreadPool();
+        echo = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor.execute(this::acceptEcho);
+
+        Path keyFile = folder.getRoot().toPath().resolve("id_rsa");
+        JSch jsch = new JSch();
+        KeyPair key = KeyPair.genKeyPair(jsch, KeyPair.RSA, 2048);
+
+        key.writePrivateKey(keyFile.toString());
+        key.dispose();
+        jsch.addIdentity(keyFile.toString());
+
+        session = jsch.getSession(System.getProperty("user.name"), "127.0.0.1", server.getPort());
+        session.setConfig("StrictHostKeyChecking", "no");
+        session.connect(5000);
+
+        forwarder = new PortForwarder(new ForwardMetrics());
+        forwarder.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        forwarder.close();
+        session.disconnect();
+        echo.close();
+        executor.shutdownNow();
+        server.stop(true);
+    }
+
+    @Test
+    public void forwardsConcurrentConnections() throws Exception {
+        int port = forwarder.addForward(session, 0, "127.0.0.1", echo.getLocalPort());
+        List<Future<?>> results = new ArrayList<>();
+
+        for (int i = 0; i < CONNECTIONS; ++ i) {
+            byte[] payload = new byte[PAYLOAD_SIZE];
+
+            new Random(i).nextBytes(payload);
+            results.add(executor.submit(() -> {
+                assertArrayEquals(payload, roundTrip(port, payload));
+                return null;
+            }));
+        }
+
+        for (Future<?> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+
+        ForwardMetrics metrics = forwarder.getMetrics();
+
+        assertEquals(CONNECTIONS, metrics.getTotalConnections());
+        assertEquals((long) CONNECTIONS * PAYLOAD_SIZE, metrics.getBytesSent());
+        assertEquals((long) CONNECTIONS * PAYLOAD_SIZE, metrics.getBytesReceived());
+    }
+
+    // Writes the payload and half-closes, so the echo only ends once the
+    // local EOF has made it through the channel.
+    private byte[] roundTrip(int port, byte[] payload) throws Exception {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            Future<?> writer = executor.submit(() -> {
+                OutputStream output = socket.getOutputStream();
+
+                output.write(payload);
+                output.flush();
+                socket.shutdownOutput();
+                return null;
+            });
+
+            byte[] received = readAll(socket.getInputStream());
+
+            writer.get();
+            return received;
+        }
+    }
+
+    private void acceptEcho() {
+        while (!echo.isClosed()) {
+            try {
+                Socket socket = echo.accept();
+
+                executor.execute(() -> {
+                    try (Socket s = socket) {
+                        InputStream input = s.getInputStream();
+                        OutputStream output = s.getOutputStream();
+                        byte[] buffer = new byte[8192];
+
+                        for (int read; (read = input.read(buffer)) > 0;) {
+                            output.write(buffer, 0, read);
+                        }
+
+                        s.shutdownOutput();
+
+                    } catch (IOException ex) {
+                        // The test fails on the client side.
+                    }
+                });
+
+            } catch (IOException ex) {
+                return;
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+
+        for (int read; (read = input.read(buffer)) > 0;) {
+            bytes.write(buffer, 0, read);
+        }
+
+        return bytes.toByteArray();
+    }
+
+}